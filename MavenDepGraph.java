@@ -5,25 +5,86 @@
 //DEPS guru.nidi:graphviz-java:0.18.1
 //DEPS org.apache.maven.resolver:maven-resolver-supplier:1.9.27
 //DEPS org.apache.maven:maven-resolver-provider:3.9.16
-//JAVA 17+
+//JAVA 21+
 
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import javax.imageio.ImageIO;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 
 import guru.nidi.graphviz.engine.Format;
 import guru.nidi.graphviz.engine.Graphviz;
@@ -34,8 +95,9 @@ import org.aesh.command.CommandResult;
 import org.aesh.command.invocation.CommandInvocation;
 import org.aesh.command.option.Option;
 import org.aesh.command.option.OptionList;
+import org.apache.maven.artifact.repository.metadata.Metadata;
+import org.apache.maven.artifact.repository.metadata.io.xpp3.MetadataXpp3Reader;
 import org.apache.maven.model.Dependency;
-import org.apache.maven.model.Model;
 import org.apache.maven.model.Parent;
 import org.apache.maven.model.Repository;
 import org.apache.maven.model.building.DefaultModelBuilderFactory;
@@ -45,6 +107,7 @@ import org.apache.maven.model.building.ModelBuilder;
 import org.apache.maven.model.building.ModelBuildingException;
 import org.apache.maven.model.building.ModelBuildingRequest;
 import org.apache.maven.model.building.ModelBuildingResult;
+import org.apache.maven.model.building.ModelCache;
 import org.apache.maven.model.building.ModelSource2;
 import org.apache.maven.model.resolution.ModelResolver;
 import org.apache.maven.model.resolution.UnresolvableModelException;
@@ -57,8 +120,12 @@ import org.eclipse.aether.repository.RemoteRepository;
 import org.eclipse.aether.resolution.VersionRangeRequest;
 import org.eclipse.aether.resolution.VersionRangeResolutionException;
 import org.eclipse.aether.resolution.VersionRangeResult;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
 import org.eclipse.aether.supplier.RepositorySystemSupplier;
+import org.eclipse.aether.util.version.GenericVersionScheme;
+import org.eclipse.aether.version.InvalidVersionSpecificationException;
 import org.eclipse.aether.version.Version;
+import org.eclipse.aether.version.VersionConstraint;
 
 @CommandDefinition(name = "maven-dep-graph",
         description = "maven-dep-graph",
@@ -66,15 +133,70 @@ import org.eclipse.aether.version.Version;
         generateHelp = true)
 public class MavenDepGraph implements Command<CommandInvocation> {
     private PomResolver pomResolver;
-    @OptionList(shortName = 'a', aliases = {"artifact"}, required = true)
+    @OptionList(shortName = 'a', aliases = {"artifact"})
     private Set<String> artifacts;
     @OptionList(shortName = 'r', aliases = {"repository"})
     private List<String> repositories;
     @Option(shortName = 'o', aliases = {"outputFile"})
     private String outputFileName;
+    @Option(name = "parallelism", defaultValue = "16", description = "Maximum number of POMs resolved concurrently")
+    private int parallelism;
+    @Option(name = "max-connections-per-host", defaultValue = "8", description = "Maximum number of concurrent POM downloads per repository host")
+    private int maxConnectionsPerHost;
+    @Option(name = "model-cache-size", defaultValue = "1024", description = "Maximum number of parent and import POM models kept in memory")
+    private int modelCacheSize;
+    @Option(name = "no-cache", hasValue = false, description = "Do not read or update the persistent caches")
+    private boolean noCache;
+    @Option(name = "negative-cache-ttl", defaultValue = "24", description = "Hours to remember that a repository does not have a POM")
+    private int negativeCacheTtl;
+    @Option(name = "metadata-ttl", defaultValue = "24", description = "Hours to reuse downloaded maven-metadata.xml for version ranges")
+    private int metadataTtl;
+    @Option(name = "offline", hasValue = false, description = "Resolve only from the local repository, using an index of its POMs instead of the network")
+    private boolean offline;
+    @Option(name = "rebuild-index", hasValue = false, description = "Rescan the local repository for the --offline index before resolving")
+    private boolean rebuildIndex;
+    @Option(name = "connect-timeout", defaultValue = "10", description = "Seconds to wait for a connection to a repository")
+    private int connectTimeout;
+    @Option(name = "request-timeout", defaultValue = "30", description = "Seconds to wait for a repository to answer a request")
+    private int requestTimeout;
+    @Option(name = "renderer", defaultValue = "auto", description = "Image renderer: dot (native Graphviz), graphviz-java, or auto to use dot when it is on the PATH")
+    private String rendererName;
+    @Option(name = "max-depth", defaultValue = "-1", description = "Maximum number of dependency levels to follow below the roots")
+    private int maxDepth;
+    @OptionList(name = "include", description = "Only follow dependencies in these groupIds (and groups nested below them)")
+    private List<String> includeGroups;
+    @OptionList(name = "exclude", description = "Do not follow dependencies in these groupIds (or groups nested below them)")
+    private List<String> excludeGroups;
+    @Option(name = "batch", description = "Resolve every GAV listed in this file (one per line, or a JSON array) and write one graph per root into the -o directory")
+    private String batchFile;
+    @Option(name = "format", defaultValue = "dot", description = "Output format for each root in batch mode: dot, svg, png or json")
+    private String batchFormat;
+    @Option(name = "diff", description = "Compare the graph of this older GAV with the graph of the -a root, and output only what changed")
+    private String diffFrom;
+    @Option(name = "serve", hasValue = false, description = "Keep the resolver and caches warm and serve graphs over HTTP on localhost")
+    private boolean serve;
+    @Option(name = "port", defaultValue = "7878", description = "Port for --serve to listen on")
+    private int port;
+    @Option(name = "idle-timeout", defaultValue = "30", description = "Minutes without a request after which --serve stops (0 to never stop)")
+    private int idleTimeout;
+    @Option(name = "memory-budget", defaultValue = "512", description = "Megabytes of live heap above which --serve evicts cached models and graphs")
+    private int memoryBudget;
+    @Option(name = "stats", hasValue = false, description = "Print resolution statistics to stderr when finished")
+    private boolean stats;
+    @Option(name = "metrics", description = "Write the resolution statistics to this file as JSON when finished")
+    private String metricsFile;
     private Set<String> validFormats = Set.of("png", "svg");
-    private Map<String, List<String>> deps = new HashMap<>();
+    private final DependencyGraph graph = new DependencyGraph();
+    private final Map<String, Duration> phases = new LinkedHashMap<>();
+    private GraphCache graphCache;
+    private Renderer renderer;
+    private long evictedAtCollection = -1;
+    private Map<String, List<GraphCache.Edge>> sessionEdges;
 
+    private static final Pattern VERSION_RANGE_PATTERN = Pattern.compile("[\\[\\](),]");
+    private static final int BINARY_MAGIC = 0x4D444752;
+    private static final int BINARY_FORMAT_VERSION = 1;
+    private static final Pattern JSON_STRING_PATTERN = Pattern.compile("\"([^\"]*)\"");
     private static final String MAVEN_CENTRAL = "https://repo1.maven.org/maven2";
     private static final Path DEFAULT_LOCAL_REPO = Path.of(System.getProperty("user.home"), ".m2", "repository");
 
@@ -88,89 +210,1064 @@ public class MavenDepGraph implements Command<CommandInvocation> {
     @Override
     public CommandResult execute(CommandInvocation invocation) {
         try {
+            if ((artifacts == null || artifacts.isEmpty()) && batchFile == null && !serve) {
+                System.err.println("Error: At least one artifact (-a) or a --batch file is required");
+                return CommandResult.FAILURE;
+            }
             Set<String> repos = new HashSet<>();
 
             if (repositories != null) {
                 repos.addAll(repositories);
             }
 
-            pomResolver = new PomResolver(DEFAULT_LOCAL_REPO, repos);
+            RepositoryMemory repositoryMemory = noCache ? RepositoryMemory.disabled()
+                    : RepositoryMemory.load(cacheDirectory().resolve("repository-memory.txt"), Duration.ofHours(negativeCacheTtl));
+            OfflineIndex offlineIndex = offline
+                    ? OfflineIndex.load(noCache ? null : cacheDirectory().resolve("offline-index.txt"), DEFAULT_LOCAL_REPO, rebuildIndex)
+                    : null;
+            pomResolver = new PomResolver(DEFAULT_LOCAL_REPO, repos, modelCacheSize, maxConnectionsPerHost, repositoryMemory,
+                    noCache ? null : cacheDirectory().resolve("metadata"), Duration.ofHours(metadataTtl),
+                    Duration.ofSeconds(connectTimeout), Duration.ofSeconds(requestTimeout), offlineIndex);
+            graphCache = noCache ? GraphCache.disabled(DEFAULT_LOCAL_REPO)
+                    : GraphCache.load(cacheDirectory().resolve("graph-cache.bin"), DEFAULT_LOCAL_REPO);
+
+            GroupFilter groupFilter = new GroupFilter(
+                    includeGroups != null ? includeGroups : List.of(),
+                    excludeGroups != null ? excludeGroups : List.of());
+            if (serve) {
+                serve(groupFilter);
+                graphCache.save();
+                repositoryMemory.save();
+                reportOfflineMisses();
+                reportStats();
+                return CommandResult.SUCCESS;
+            }
 
+            if (diffFrom != null) {
+                if (artifacts == null || artifacts.size() != 1) {
+                    System.err.println("Error: --diff compares its GAV with exactly one -a root");
+                    return CommandResult.FAILURE;
+                }
+                runDiff(diffFrom, artifacts.iterator().next(), groupFilter);
+                graphCache.save();
+                repositoryMemory.save();
+                reportOfflineMisses();
+                reportStats();
+                return CommandResult.SUCCESS;
+            }
 
-            for (String artifact : artifacts) {
-                processArtifact(gavToDependency(artifact));
+            if (batchFile != null) {
+                Set<String> roots = new LinkedHashSet<>(readBatch(Path.of(batchFile)));
+                if (artifacts != null) {
+                    roots.addAll(artifacts);
+                }
+                boolean succeeded = runBatch(roots, groupFilter);
+                graphCache.save();
+                repositoryMemory.save();
+                reportOfflineMisses();
+                reportStats();
+                return succeeded ? CommandResult.SUCCESS : CommandResult.FAILURE;
             }
 
+            long resolveStart = System.nanoTime();
+            resolveGraph(artifacts.stream().map(this::gavToDependency).toList(), groupFilter,
+                    new Semaphore(Math.max(1, parallelism)));
+            graphCache.save();
+            repositoryMemory.save();
+            recordPhase("resolve", resolveStart);
+
             outputGraph();
 
+            reportOfflineMisses();
+            reportStats();
+
             return CommandResult.SUCCESS;
-        } catch (IOException | ModelBuildingException | UnresolvableModelException e) {
+        } catch (IOException e) {
             System.err.println("Error: " + e.getMessage());
             return CommandResult.FAILURE;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Error: Interrupted while building the graph");
+            return CommandResult.FAILURE;
+        }
+    }
+
+    private void resolveGraph(Collection<Dependency> roots, GroupFilter groupFilter, Semaphore permits) throws InterruptedException {
+        new GraphWalker(permits, maxDepth, groupFilter).walk(roots);
+        graph.freeze();
+    }
+
+    /**
+     * Resolves each root as a graph of its own, all of them concurrently, and writes one file per root
+     * into the {@code -o} directory. The roots share this tool's resolver, model cache and graph cache,
+     * so common parents and subtrees are only downloaded and built once, and they share
+     * {@code parallelism} permits, so the batch resolves no more artifacts at a time than a single run.
+     * A root that fails is reported and does not stop the others, and the result is whether every
+     * root succeeded.
+     */
+    private boolean runBatch(Collection<String> roots, GroupFilter groupFilter) throws IOException, InterruptedException {
+        if (!Set.of("dot", "svg", "png", "json", "jsonl", "mdg").contains(batchFormat)) {
+            throw new IOException("Invalid format: " + batchFormat);
+        }
+        Path outputDir = Path.of(outputFileName != null ? outputFileName : ".");
+        Files.createDirectories(outputDir);
+        if (validFormats.contains(batchFormat)) {
+            renderer = selectRenderer();
+        }
+
+        Semaphore permits = new Semaphore(Math.max(1, parallelism));
+        Map<String, String> failures = new ConcurrentSkipListMap<>();
+        AtomicLong resolvedArtifacts = new AtomicLong();
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (String root : roots) {
+                executor.execute(() -> {
+                    MavenDepGraph tool = withRoots(Set.of(root), outputDir.resolve(root.replace(':', '_') + "." + batchFormat).toString());
+                    try {
+                        tool.resolveGraph(List.of(gavToDependency(root)), groupFilter, permits);
+                        tool.outputGraph();
+                        resolvedArtifacts.addAndGet(tool.graph.resolvedCount());
+                    } catch (IOException | RuntimeException e) {
+                        failures.put(root, String.valueOf(e.getMessage()));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+        }
+        recordPhase("batch", start);
+
+        double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+        int succeeded = roots.size() - failures.size();
+        failures.forEach((root, message) -> System.err.println("Failed " + root + ": " + message));
+        System.err.printf("Resolved %d of %d roots into %s in %.1f s (%.1f roots/s, %.0f artifacts/s)%n",
+                succeeded, roots.size(), outputDir, seconds, succeeded / seconds, resolvedArtifacts.get() / seconds);
+        return failures.isEmpty();
+    }
+
+    /**
+     * A tool for one graph of a batch or server, with its own graph but this tool's settings, resolver
+     * and caches.
+     */
+    private MavenDepGraph withRoots(Set<String> roots, String outputFileName) {
+        MavenDepGraph tool = new MavenDepGraph();
+        tool.artifacts = roots;
+        tool.outputFileName = outputFileName;
+        tool.maxDepth = maxDepth;
+        tool.rendererName = rendererName;
+        tool.renderer = renderer;
+        tool.pomResolver = pomResolver;
+        tool.graphCache = graphCache;
+        tool.sessionEdges = sessionEdges;
+        return tool;
+    }
+
+    /**
+     * Resolves {@code oldRoot} and then {@code newRoot} in one session and outputs the difference.
+     * Every artifact resolved for the old graph has its edges remembered for the session, including
+     * ones with version ranges that the graph cache leaves out, so the new walk only builds models for
+     * artifacts the old graph didn't have, and the cost follows the size of the change.
+     */
+    private void runDiff(String oldRoot, String newRoot, GroupFilter groupFilter) throws IOException, InterruptedException {
+        Semaphore permits = new Semaphore(Math.max(1, parallelism));
+        sessionEdges = new ConcurrentHashMap<>();
+        long resolveStart = System.nanoTime();
+        MavenDepGraph oldTool = withRoots(Set.of(oldRoot), null);
+        oldTool.resolveGraph(List.of(gavToDependency(oldRoot)), groupFilter, permits);
+        long buildsBefore = pomResolver.builds.get();
+        MavenDepGraph newTool = withRoots(Set.of(newRoot), null);
+        newTool.resolveGraph(List.of(gavToDependency(newRoot)), groupFilter, permits);
+        long newBuilds = pomResolver.builds.get() - buildsBefore;
+        recordPhase("resolve", resolveStart);
+
+        long emitStart = System.nanoTime();
+        GraphDiff diff = GraphDiff.of(oldTool.graph, newTool.graph);
+        String extension = outputFileName == null ? "dot" : getFileExtension(outputFileName);
+        if (outputFileName == null) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 1 << 16);
+            diff.writeDot(out);
+            out.flush();
+        } else if (extension.equals("json") || extension.equals("dot")) {
+            try (Writer out = Files.newBufferedWriter(Path.of(outputFileName), StandardCharsets.UTF_8)) {
+                if (extension.equals("json")) {
+                    diff.writeJson(out);
+                } else {
+                    diff.writeDot(out);
+                }
+            }
+        } else {
+            getFormat(extension);
+            Path dotFile = Files.createTempFile("maven-dep-graph-diff", ".dot");
+            try {
+                try (Writer out = Files.newBufferedWriter(dotFile, StandardCharsets.UTF_8)) {
+                    diff.writeDot(out);
+                }
+                long renderStart = System.nanoTime();
+                selectRenderer().render(dotFile, extension, Path.of(outputFileName));
+                recordPhase("render", renderStart);
+            } finally {
+                Files.deleteIfExists(dotFile);
+            }
+        }
+        recordPhase("emit", emitStart);
+
+        System.err.printf("%s -> %s: %s (%d model builds for %d artifacts in the new graph)%n",
+                oldRoot, newRoot, diff.describe(), newBuilds, newTool.graph.resolvedCount());
+    }
+
+    /**
+     * Reads the roots of a batch: either a JSON array of GAV strings, or one GAV per line, ignoring
+     * blank lines and {@code #} comments.
+     */
+    private static List<String> readBatch(Path file) throws IOException {
+        return parseRoots(Files.readString(file));
+    }
+
+    private static List<String> parseRoots(String content) {
+        if (content.stripLeading().startsWith("[")) {
+            return JSON_STRING_PATTERN.matcher(content).results().map(match -> match.group(1)).toList();
+        }
+        return content.lines()
+                .map(String::strip)
+                .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                .toList();
+    }
+
+    /**
+     * Keeps the resolver and caches warm behind an HTTP endpoint on the loopback interface, so clients
+     * pay for JVM startup and resolver wiring once instead of per graph. {@code GET /graph?a=g:a:v}
+     * (repeatable), or {@code POST /graph} with the roots in the body in the same form as a
+     * {@code --batch} file, answers with the graph as DOT, or as JSON with {@code format=json}.
+     * {@code GET /stats} answers with the cache statistics.
+     * <p>
+     * Requests share {@code parallelism} permits. Serving stops after {@code idleTimeout} minutes
+     * without a request to either endpoint, and whenever the heap still in use after a collection
+     * exceeds the memory budget, the model cache is cleared and the least recently used half of the
+     * graph cache evicted.
+     */
+    private void serve(GroupFilter groupFilter) throws IOException, InterruptedException {
+        Semaphore permits = new Semaphore(Math.max(1, parallelism));
+        AtomicInteger active = new AtomicInteger();
+        AtomicLong lastRequest = new AtomicLong(System.nanoTime());
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(executor);
+        server.createContext("/graph", exchange -> {
+            active.incrementAndGet();
+            try (exchange) {
+                handleGraphRequest(exchange, groupFilter, permits);
+            } finally {
+                lastRequest.set(System.nanoTime());
+                active.decrementAndGet();
+                enforceMemoryBudget();
+            }
+        });
+        server.createContext("/stats", exchange -> {
+            lastRequest.set(System.nanoTime());
+            try (exchange) {
+                respond(exchange, 200, "text/plain", cacheStats());
+            }
+        });
+        server.start();
+        System.err.println("Serving dependency graphs on http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort() + "/graph");
+
+        CountDownLatch idle = new CountDownLatch(1);
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        if (idleTimeout > 0) {
+            long timeoutNanos = TimeUnit.MINUTES.toNanos(idleTimeout);
+            timer.scheduleWithFixedDelay(() -> {
+                if (active.get() == 0 && System.nanoTime() - lastRequest.get() > timeoutNanos) {
+                    idle.countDown();
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+        }
+        try {
+            idle.await();
+            System.err.println("Stopping: no request for " + idleTimeout + " min");
+        } finally {
+            timer.shutdownNow();
+            server.stop(0);
+            executor.close();
         }
     }
 
-    private void processArtifact(Dependency parent) throws IOException, ModelBuildingException, UnresolvableModelException {
-        if ("test".equals(parent.getScope())) {
+    private void handleGraphRequest(HttpExchange exchange, GroupFilter groupFilter, Semaphore permits) throws IOException {
+        Map<String, List<String>> parameters = queryParameters(exchange.getRequestURI());
+        Set<String> roots = new LinkedHashSet<>(parameters.getOrDefault("a", List.of()));
+        if ("POST".equals(exchange.getRequestMethod())) {
+            roots.addAll(parseRoots(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8)));
+        }
+        String format = parameters.getOrDefault("format", List.of("dot")).get(0);
+        if (roots.isEmpty()) {
+            respond(exchange, 400, "text/plain", "At least one root is required, as ?a=groupId:artifactId:version or in the body\n");
+            return;
+        }
+        if (!format.equals("dot") && !format.equals("json")) {
+            respond(exchange, 400, "text/plain", "Invalid format: " + format + "\n");
             return;
         }
+
+        MavenDepGraph tool = withRoots(roots, null);
         try {
-            String resolvedVersion = pomResolver.resolveVersionRange(
-                    parent.getGroupId(), parent.getArtifactId(), parent.getVersion());
-            parent.setVersion(resolvedVersion);
-        } catch (VersionRangeResolutionException e) {
-            System.err.println("WARNING: Unable to resolve version range for " + depToGav(parent));
+            graphCache.revalidate();
+            tool.resolveGraph(roots.stream().map(this::gavToDependency).toList(), groupFilter, permits);
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, "text/plain", e.getMessage() + "\n");
+            return;
+        } catch (RuntimeException e) {
+            respond(exchange, 500, "text/plain", "Resolution failed: " + e.getMessage() + "\n");
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "text/plain", "Interrupted\n");
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", format.equals("json") ? "application/json" : "text/vnd.graphviz");
+        exchange.sendResponseHeaders(200, 0);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 1 << 16)) {
+            if (format.equals("json")) {
+                tool.writeJson(out);
+            } else {
+                tool.writeDot(out, null);
+            }
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static Map<String, List<String>> queryParameters(URI uri) {
+        Map<String, List<String>> parameters = new LinkedHashMap<>();
+        if (uri.getRawQuery() != null) {
+            for (String pair : uri.getRawQuery().split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    parameters.computeIfAbsent(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8), key -> new ArrayList<>())
+                            .add(URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Evicts cached models and graphs when the heap still in use after the last collection is over
+     * the memory budget. Memory only drops at the next collection, so nothing more is evicted until
+     * one has run.
+     */
+    private synchronized void enforceMemoryBudget() {
+        long collections = ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionCount)
+                .sum();
+        if (collections == evictedAtCollection) {
             return;
         }
-        String parentGav = depToGav(parent);
-        if (!deps.containsKey(parentGav)) {
+        long live = ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP)
+                .map(MemoryPoolMXBean::getCollectionUsage)
+                .filter(usage -> usage != null)
+                .mapToLong(MemoryUsage::getUsed)
+                .sum();
+        if (live > memoryBudget * 1024L * 1024L) {
+            pomResolver.evict();
+            graphCache.evict(0.5);
+            evictedAtCollection = collections;
+            System.err.println("Evicted cached models and graphs: " + live / (1024 * 1024) + " MB live, budget "
+                    + memoryBudget + " MB");
+        }
+    }
+
+    /*
+     * Hooks for MavenDepGraphBench. JMH will not run benchmarks declared in the default package, and a
+     * named package cannot refer to this script's classes, so the benchmark calls these reflectively
+     * and only passes JDK types across.
+     */
+
+    /**
+     * Resolves {@code roots} against {@code repoUrl} using {@code localRepo}, without any of the
+     * persistent caches except the graph cache in {@code cacheDir} (when not null), and returns the
+     * resolved tool so the graph can be emitted with {@link #benchmarkWriteDot}.
+     */
+    public static MavenDepGraph benchmarkResolve(Path localRepo, String repoUrl, Path cacheDir, List<String> roots,
+                                                 int parallelism) throws IOException, InterruptedException {
+        MavenDepGraph tool = new MavenDepGraph();
+        tool.parallelism = parallelism;
+        tool.maxDepth = -1;
+        try (PomResolver resolver = new PomResolver(localRepo, Set.of(repoUrl), 1024, 8, RepositoryMemory.disabled(),
+                null, Duration.ZERO, Duration.ofSeconds(10), Duration.ofSeconds(30), null)) {
+            tool.pomResolver = resolver;
+            tool.graphCache = cacheDir == null ? GraphCache.disabled(localRepo)
+                    : GraphCache.load(cacheDir.resolve("graph-cache.bin"), localRepo);
+            tool.resolveGraph(roots.stream().map(tool::gavToDependency).toList(), new GroupFilter(List.of(), List.of()),
+                    new Semaphore(Math.max(1, parallelism)));
+            tool.graphCache.save();
+        }
+        return tool;
+    }
+
+    /**
+     * Builds the effective model of each of {@code gavs} with one resolver, so parents and imports are
+     * shared through the model cache, and returns the total number of dependencies declared.
+     */
+    public static int benchmarkBuildModels(Path localRepo, String repoUrl, List<String> gavs) throws Exception {
+        int dependencies = 0;
+        try (PomResolver resolver = new PomResolver(localRepo, Set.of(repoUrl), 1024, 8, RepositoryMemory.disabled(),
+                null, Duration.ZERO, Duration.ofSeconds(10), Duration.ofSeconds(30), null)) {
+            for (String gav : gavs) {
+                String[] parts = gav.split(":");
+                dependencies += resolver.resolve(parts[0], parts[1], parts[2]).dependencies().size();
+            }
+        }
+        return dependencies;
+    }
+
+    public static void benchmarkWriteDot(MavenDepGraph tool, Writer out) throws IOException {
+        tool.writeDot(out, null);
+    }
+
+    /**
+     * Walks the dependency tree as a fan-out worklist on virtual threads, without recursion, so graph
+     * depth is bounded by memory rather than the stack. Every artifact is claimed before any I/O is
+     * done for it, so two branches never resolve (or download) the same POM, and at most
+     * {@code parallelism} artifacts are being resolved at any one time. Without a depth limit or group
+     * filter, the resulting {@link #graph} is the same as the one produced by a serial depth-first
+     * walk.
+     */
+    private class GraphWalker {
+        private final Semaphore permits;
+        private final int maxDepth;
+        private final GroupFilter groupFilter;
+        private final Map<String, Integer> claimed = new ConcurrentHashMap<>();
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+        GraphWalker(Semaphore permits, int maxDepth, GroupFilter groupFilter) {
+            this.permits = permits;
+            this.maxDepth = maxDepth;
+            this.groupFilter = groupFilter;
+        }
+
+        void walk(Collection<Dependency> roots) throws InterruptedException {
+            try (executor) {
+                roots.forEach(root -> submit(root, 0));
+                complete();
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    executor.shutdownNow();
+                    throw e;
+                }
+            }
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+        }
+
+        private void submit(Dependency dependency, int depth) {
+            if (!expands(depth) || "test".equals(dependency.getScope())) {
+                return;
+            }
+            pending.incrementAndGet();
+            executor.execute(() -> {
+                try {
+                    permits.acquire();
+                    try {
+                        processArtifact(dependency, depth);
+                    } finally {
+                        permits.release();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    complete();
+                }
+            });
+        }
+
+        /**
+         * Starts fetching the children's POMs right away, so downloads run ahead of the model building
+         * permits, then queues the children for resolution.
+         */
+        private void submitAll(List<Dependency> children, int depth) {
+            if (!expands(depth)) {
+                return;
+            }
+            for (Dependency child : children) {
+                if (!"test".equals(child.getScope()) && !claimed.containsKey(depToGav(child))) {
+                    pomResolver.prefetch(child.getGroupId(), child.getArtifactId(), child.getVersion());
+                }
+            }
+            children.forEach(child -> submit(child, depth));
+        }
+
+        private void complete() {
+            if (pending.decrementAndGet() == 0) {
+                done.countDown();
+            }
+        }
+
+        private boolean expands(int depth) {
+            return maxDepth < 0 || depth < maxDepth;
+        }
+
+        /**
+         * Claims {@code gav} for expansion at {@code depth}. Without a depth limit every artifact is
+         * claimed exactly once; with one, an artifact is expanded again if it is later reached by a
+         * shorter path, so the outcome doesn't depend on which branch got there first.
+         */
+        private boolean claim(String gav, int depth) {
+            int claimDepth = maxDepth < 0 ? 0 : depth;
+            while (true) {
+                Integer existing = claimed.putIfAbsent(gav, claimDepth);
+                if (existing == null) {
+                    return true;
+                }
+                if (existing <= claimDepth) {
+                    return false;
+                }
+                if (claimed.replace(gav, existing, claimDepth)) {
+                    return true;
+                }
+            }
+        }
+
+        private void processArtifact(Dependency parent, int depth) {
+            String declaredGav = depToGav(parent);
+            if (!claim(declaredGav, depth)) {
+                return;
+            }
+            try {
+                String resolvedVersion = pomResolver.resolveVersionRange(
+                        parent.getGroupId(), parent.getArtifactId(), parent.getVersion());
+                parent.setVersion(resolvedVersion);
+            } catch (VersionRangeResolutionException e) {
+                warn("WARNING: Unable to resolve version range for " + declaredGav);
+                return;
+            }
+            String parentGav = depToGav(parent);
+            if (!parentGav.equals(declaredGav) && !claim(parentGav, depth)) {
+                return;
+            }
+            List<GraphCache.Edge> cachedEdges = sessionEdges != null ? sessionEdges.get(parentGav) : null;
+            if (cachedEdges == null) {
+                cachedEdges = graphCache.lookup(parentGav);
+            }
+            if (cachedEdges != null) {
+                List<String> localDeps = new ArrayList<>();
+                List<Dependency> children = new ArrayList<>();
+                for (GraphCache.Edge edge : cachedEdges) {
+                    Dependency child = gavToDependency(edge.gav());
+                    if (!groupFilter.accepts(child.getGroupId())) {
+                        continue;
+                    }
+                    if (!edge.expand()) {
+                        child.setScope("test");
+                    }
+                    localDeps.add(edge.gav());
+                    children.add(child);
+                }
+                graph.putChildren(parentGav, localDeps);
+                submitAll(children, depth + 1);
+                return;
+            }
             try {
-                Model model = pomResolver.resolve(parent.getGroupId(), parent.getArtifactId(), parent.getVersion());
-                List<String> localDeps = deps.computeIfAbsent(parentGav, k -> new ArrayList<>());
-                for (Dependency dep : model.getDependencies()) {
+                ResolvedModel resolved = pomResolver.resolve(parent.getGroupId(), parent.getArtifactId(), parent.getVersion());
+                List<String> localDeps = new ArrayList<>();
+                List<GraphCache.Edge> edges = new ArrayList<>();
+                List<Dependency> children = new ArrayList<>();
+                boolean ranged = false;
+                for (Dependency dep : resolved.dependencies()) {
+                    String declaredVersion = dep.getVersion();
+                    boolean accepted = groupFilter.accepts(dep.getGroupId());
+                    if (!accepted && (declaredVersion == null || VERSION_RANGE_PATTERN.matcher(declaredVersion).find())) {
+                        // Filtered out before paying for the range lookup, so this node's edges can't be cached
+                        ranged = true;
+                        continue;
+                    }
                     try {
                         String resolvedDepVersion = pomResolver.resolveVersionRange(
-                                dep.getGroupId(), dep.getArtifactId(), dep.getVersion());
+                                dep.getGroupId(), dep.getArtifactId(), declaredVersion);
+                        ranged |= resolvedDepVersion != null && !resolvedDepVersion.equals(declaredVersion);
                         dep.setVersion(resolvedDepVersion);
-                        localDeps.add(depToGav(dep));
-                        processArtifact(dep);
+                        edges.add(new GraphCache.Edge(depToGav(dep), !"test".equals(dep.getScope())));
+                        if (accepted) {
+                            localDeps.add(depToGav(dep));
+                            children.add(dep);
+                        }
                     } catch (VersionRangeResolutionException e) {
-                        System.err.println("WARNING: Unable to resolve version range for " + depToGav(dep));
-                    } catch (IOException | ModelBuildingException e) {
-                        System.err.println("WARNING: Unable to build model for " + dep);
+                        warn("WARNING: Unable to resolve version range for " + depToGav(dep));
+                        ranged = true;
                     }
                 }
+                graph.putChildren(parentGav, localDeps);
+                // Range results change as new versions are published, so only fixed edges are persisted
+                if (!ranged) {
+                    graphCache.store(parentGav, resolved.sourcePoms(), edges);
+                }
+                if (sessionEdges != null) {
+                    sessionEdges.put(parentGav, edges);
+                }
+                submitAll(children, depth + 1);
             } catch (ModelBuildingException | UnresolvableModelException e) {
-                System.err.println("WARNING: Unable to resolve model for " + parent);
+                warn("WARNING: Unable to resolve model for " + parent);
+            }
+        }
+
+        // Offline, what is missing is reported once at the end instead
+        private void warn(String message) {
+            if (pomResolver.offlineIndex == null) {
+                System.err.println(message);
             }
         }
     }
 
-    private void outputGraph() throws IOException {
-        StringBuilder sb = new StringBuilder();
-        sb.append("digraph MavenDepGraph {\n");
-        sb.append("\t{\n");
-        sb.append("\t\tnode [shape=\"box\",style=\"rounded\",fontname=\"Helvetica\",fontsize=\"14\"]\n");
-        sb.append("\t\tedge [fontsize=\"10\",fontname=\"Helvetica\"]\n");
-        deps.keySet().forEach(entry -> {
-            sb.append(String.format("\t\t\"%s\" [label=\"%s\"]%n", entry, entry.replace(":", ":\\n")));
-        });
-        sb.append("\t}\n");
+    /**
+     * Decides which groupIds the walk follows. A groupId matches a pattern when it is equal to it or
+     * nested below it, so {@code org.apache} matches {@code org.apache.maven} but not
+     * {@code org.apachex}. Excludes win over includes, and an empty include list includes everything.
+     */
+    private record GroupFilter(Collection<String> includes, Collection<String> excludes) {
+        boolean accepts(String groupId) {
+            return (includes.isEmpty() || includes.stream().anyMatch(pattern -> matches(groupId, pattern)))
+                    && excludes.stream().noneMatch(pattern -> matches(groupId, pattern));
+        }
 
-        deps.forEach((parent, children) -> {
-            sb.append(String.format("\t \"%s\" -> {%s}%n", parent,
-                    children.stream()
-                            .map(d -> "\"" + d + "\"")
-                            .collect(Collectors.joining(", "))));
-        });
-        sb.append("}\n");
+        private static boolean matches(String groupId, String pattern) {
+            return groupId.equals(pattern) || groupId.startsWith(pattern + ".");
+        }
+    }
 
-        if (outputFileName != null) {
-            Graphviz.fromString(sb.toString())
-                    .render(getFormat(getFileExtension(outputFileName)))
-                    .toFile(new File(outputFileName));
-        } else {
-            System.out.println(sb);
+    private void outputGraph() throws IOException, InterruptedException {
+        OutputEvent event = new OutputEvent();
+        event.begin();
+        try {
+            writeOutput();
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.file = outputFileName;
+                event.nodes = graph.resolvedCount();
+                event.edges = graph.edgeCount();
+                event.commit();
+            }
+        }
+    }
+
+    private void writeOutput() throws IOException, InterruptedException {
+        long emitStart = System.nanoTime();
+        if (outputFileName == null) {
+            // Bypass System.out's PrintStream so the document goes out in large buffered writes as it is produced
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 1 << 16);
+            writeDot(out, null);
+            out.flush();
+            recordPhase("emit", emitStart);
+            return;
+        }
+
+        String extension = getFileExtension(outputFileName);
+        if ("json".equals(extension) || "jsonl".equals(extension)) {
+            try (Writer out = Files.newBufferedWriter(Path.of(outputFileName), StandardCharsets.UTF_8)) {
+                if ("json".equals(extension)) {
+                    writeJson(out);
+                } else {
+                    writeJsonLines(out);
+                }
+            }
+            recordPhase("emit", emitStart);
+            return;
+        }
+        if ("mdg".equals(extension)) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(Path.of(outputFileName)), 1 << 16))) {
+                writeBinary(out);
+            }
+            recordPhase("emit", emitStart);
+            return;
+        }
+        getFormat(extension);
+        if (renderer == null) {
+            renderer = selectRenderer();
+        }
+        List<BitSet> components = artifacts.size() > 1 && renderer.isParallel() && !"dot".equals(extension)
+                ? graph.components() : List.of();
+        Path workDir = Files.createTempDirectory("maven-dep-graph");
+        try {
+            if (components.size() > 1) {
+                renderComponents(renderer, components, extension, workDir);
+            } else {
+                Path dotFile = workDir.resolve("graph.dot");
+                try (Writer out = Files.newBufferedWriter(dotFile, StandardCharsets.UTF_8)) {
+                    writeDot(out, null);
+                }
+                recordPhase("emit", emitStart);
+
+                long renderStart = System.nanoTime();
+                renderer.render(dotFile, extension, Path.of(outputFileName));
+                recordPhase("render", renderStart);
+            }
+        } finally {
+            try (var files = Files.list(workDir)) {
+                for (Path file : files.toList()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(workDir);
+        }
+    }
+
+    /**
+     * Renders each connected component of a multi-root graph as its own image, all at the same time,
+     * then tiles the images into the output file. Graphviz's layout cost grows much faster than
+     * linearly with graph size, so several small layouts finish well ahead of one large one.
+     */
+    private void renderComponents(Renderer renderer, List<BitSet> components, String extension, Path workDir)
+            throws IOException, InterruptedException {
+        long emitStart = System.nanoTime();
+        List<Path> dotFiles = new ArrayList<>();
+        for (int i = 0; i < components.size(); i++) {
+            Path dotFile = workDir.resolve("component-" + i + ".dot");
+            try (Writer out = Files.newBufferedWriter(dotFile, StandardCharsets.UTF_8)) {
+                writeDot(out, components.get(i));
+            }
+            dotFiles.add(dotFile);
+        }
+        recordPhase("emit", emitStart);
+
+        long renderStart = System.nanoTime();
+        List<Path> images = new ArrayList<>();
+        List<CompletableFuture<Void>> renders = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Path dotFile : dotFiles) {
+                Path image = workDir.resolve(dotFile.getFileName().toString().replace(".dot", "." + extension));
+                images.add(image);
+                renders.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        renderer.render(dotFile, extension, image);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new CompletionException(e);
+                    }
+                }, executor));
+            }
+            try {
+                CompletableFuture.allOf(renders.toArray(CompletableFuture[]::new)).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof UncheckedIOException io) {
+                    throw io.getCause();
+                }
+                if (e.getCause() instanceof InterruptedException interrupted) {
+                    throw interrupted;
+                }
+                throw e;
+            }
+        }
+        ImageTiler.tile(images, extension, Path.of(outputFileName));
+        recordPhase("render", renderStart);
+    }
+
+    private Renderer selectRenderer() throws IOException {
+        Path dot = findOnPath("dot");
+        return switch (rendererName) {
+            case "dot" -> {
+                if (dot == null) {
+                    throw new IOException("The dot renderer was requested, but no dot executable is on the PATH");
+                }
+                yield new NativeDotRenderer(dot);
+            }
+            case "graphviz-java" -> new GraphvizJavaRenderer();
+            case "auto" -> dot != null ? new NativeDotRenderer(dot) : new GraphvizJavaRenderer();
+            default -> throw new IOException("Unknown renderer: " + rendererName);
+        };
+    }
+
+    private static Path findOnPath(String executable) {
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return null;
+        }
+        for (String dir : path.split(File.pathSeparator)) {
+            for (String name : List.of(executable, executable + ".exe")) {
+                Path candidate = Path.of(dir, name);
+                if (Files.isRegularFile(candidate) && Files.isExecutable(candidate)) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void recordPhase(String phase, long startNanos) {
+        phases.merge(phase, Duration.ofNanos(System.nanoTime() - startNanos), Duration::plus);
+    }
+
+    /**
+     * Streams the graph as DOT, one node or edge statement at a time, so no copy of the document is
+     * held in memory. When {@code nodes} is not null, only those nodes and their edges are written.
+     */
+    private void writeDot(Writer out, BitSet nodes) throws IOException {
+        out.write("digraph MavenDepGraph {\n");
+        out.write("\t{\n");
+        out.write("\t\tnode [shape=\"box\",style=\"rounded\",fontname=\"Helvetica\",fontsize=\"14\"]\n");
+        out.write("\t\tedge [fontsize=\"10\",fontname=\"Helvetica\"]\n");
+        for (int node = 0; node < graph.nodeCount(); node++) {
+            if (graph.isResolved(node) && (nodes == null || nodes.get(node))) {
+                String gav = graph.gav(node);
+                out.write("\t\t\"");
+                out.write(gav);
+                out.write("\" [label=\"");
+                out.write(gav.replace(":", ":\\n"));
+                out.write("\"]\n");
+            }
+        }
+        out.write("\t}\n");
+
+        for (int node = 0; node < graph.nodeCount(); node++) {
+            if (graph.isResolved(node) && (nodes == null || nodes.get(node))) {
+                out.write("\t \"");
+                out.write(graph.gav(node));
+                out.write("\" -> {");
+                for (int edge = graph.edgeStart(node); edge < graph.edgeStart(node + 1); edge++) {
+                    out.write(edge == graph.edgeStart(node) ? "\"" : ", \"");
+                    out.write(graph.gav(graph.target(edge)));
+                    out.write('"');
+                }
+                out.write("}\n");
+            }
+        }
+        out.write("}\n");
+    }
+
+    /**
+     * Writes the graph as a JSON object with a {@code nodes} array of GAVs and an {@code edges} array
+     * of {@code {"from", "to"}} pairs. Like the DOT output, it holds the resolved artifacts and every
+     * dependency they point to.
+     */
+    private void writeJson(Writer out) throws IOException {
+        BitSet present = new BitSet();
+        for (int node = 0; node < graph.nodeCount(); node++) {
+            if (graph.isResolved(node)) {
+                present.set(node);
+                for (int edge = graph.edgeStart(node); edge < graph.edgeStart(node + 1); edge++) {
+                    present.set(graph.target(edge));
+                }
+            }
+        }
+
+        out.write("{\n  \"nodes\": [");
+        String separator = "\n    ";
+        for (int node = present.nextSetBit(0); node >= 0; node = present.nextSetBit(node + 1)) {
+            out.write(separator);
+            writeJsonString(out, graph.gav(node));
+            separator = ",\n    ";
+        }
+        out.write("\n  ],\n  \"edges\": [");
+        separator = "\n    ";
+        for (int node = 0; node < graph.nodeCount(); node++) {
+            for (int edge = graph.edgeStart(node); edge < graph.edgeStart(node + 1); edge++) {
+                out.write(separator);
+                out.write("{\"from\": ");
+                writeJsonString(out, graph.gav(node));
+                out.write(", \"to\": ");
+                writeJsonString(out, graph.gav(graph.target(edge)));
+                out.write('}');
+                separator = ",\n    ";
+            }
+        }
+        out.write("\n  ]\n}\n");
+    }
+
+    /**
+     * Writes the graph as JSON Lines, one node or edge per line, so readers can stream it. Nodes come
+     * first, as {@code {"type":"node","id":0,"gav":"g:a:v","resolved":true}}, followed by the edges
+     * between their ids, as {@code {"type":"edge","from":0,"to":1}}. Unresolved nodes are artifacts
+     * whose model could not be built.
+     */
+    private void writeJsonLines(Writer out) throws IOException {
+        for (int node = 0; node < graph.nodeCount(); node++) {
+            out.write("{\"type\":\"node\",\"id\":");
+            out.write(Integer.toString(node));
+            out.write(",\"gav\":");
+            writeJsonString(out, graph.gav(node));
+            out.write(graph.isResolved(node) ? ",\"resolved\":true}\n" : ",\"resolved\":false}\n");
+        }
+        for (int node = 0; node < graph.nodeCount(); node++) {
+            for (int edge = graph.edgeStart(node); edge < graph.edgeStart(node + 1); edge++) {
+                out.write("{\"type\":\"edge\",\"from\":");
+                out.write(Integer.toString(node));
+                out.write(",\"to\":");
+                out.write(Integer.toString(graph.target(edge)));
+                out.write("}\n");
+            }
+        }
+    }
+
+    /**
+     * Writes the graph in a compact binary form, big-endian as by {@link DataOutputStream}: the magic
+     * number {@code MDGR} and a format version (ints), the node count (int), a string table of one
+     * modified-UTF-8 GAV and a resolved flag (boolean) per node, and then, per node in the same order,
+     * its number of children (int) followed by their node ids (ints).
+     */
+    private void writeBinary(DataOutputStream out) throws IOException {
+        out.writeInt(BINARY_MAGIC);
+        out.writeInt(BINARY_FORMAT_VERSION);
+        out.writeInt(graph.nodeCount());
+        for (int node = 0; node < graph.nodeCount(); node++) {
+            out.writeUTF(graph.gav(node));
+            out.writeBoolean(graph.isResolved(node));
+        }
+        for (int node = 0; node < graph.nodeCount(); node++) {
+            out.writeInt(graph.edgeStart(node + 1) - graph.edgeStart(node));
+            for (int edge = graph.edgeStart(node); edge < graph.edgeStart(node + 1); edge++) {
+                out.writeInt(graph.target(edge));
+            }
+        }
+    }
+
+    private static void writeJsonString(Writer out, String value) throws IOException {
+        out.write('"');
+        out.write(value.replace("\\", "\\\\").replace("\"", "\\\""));
+        out.write('"');
+    }
+
+    /**
+     * Lists, in one go, every POM and version range the offline index could not supply.
+     */
+    private void reportOfflineMisses() {
+        OfflineIndex offlineIndex = pomResolver.offlineIndex;
+        if (offlineIndex != null && !offlineIndex.misses.isEmpty()) {
+            System.err.println(offlineIndex.misses.size() + " POMs or version ranges are not in the local repository:");
+            offlineIndex.misses.forEach(miss -> System.err.println("  " + miss));
+        }
+    }
+
+    private void reportStats() throws IOException {
+        if (stats) {
+            printStats();
+        }
+        if (metricsFile != null) {
+            Files.writeString(Path.of(metricsFile), toJson(metrics(), "") + "\n");
+        }
+    }
+
+    private void printStats() {
+        if (batchFile == null && !serve && diffFrom == null) {
+            System.err.println("Resolved " + graph.resolvedCount() + " artifacts (" + graph.nodeCount() + " nodes, "
+                    + graph.edgeCount() + " edges)");
+        }
+        System.err.print(cacheStats());
+        if (phases.isEmpty()) {
+            return;
+        }
+        System.err.println("Timings: " + phases.entrySet().stream()
+                .map(phase -> phase.getKey() + " " + phase.getValue().toMillis() + " ms")
+                .collect(Collectors.joining(", ")));
+    }
+
+    private String cacheStats() {
+        return "Model cache: " + pomResolver.modelCache.describe() + "\n"
+                + "Graph cache: " + graphCache.describe() + "\n"
+                + "Repository probes: " + pomResolver.repositoryMemory.describe() + "\n"
+                + "Version ranges: " + pomResolver.versionIndex.describe() + "\n"
+                + "Repository latency: " + pomResolver.describeLatencies() + "\n"
+                + "Work (summed across threads): " + pomResolver.describeWork() + "\n";
+    }
+
+    /**
+     * The statistics printed by {@code --stats}, as a tree of maps for the {@code --metrics} file.
+     */
+    private Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        if (batchFile == null && !serve && diffFrom == null) {
+            metrics.put("artifacts", graph.resolvedCount());
+            metrics.put("nodes", graph.nodeCount());
+            metrics.put("edges", graph.edgeCount());
+        }
+        Map<String, Object> phaseMillis = new LinkedHashMap<>();
+        phases.forEach((phase, duration) -> phaseMillis.put(phase, duration.toMillis()));
+        metrics.put("phases", phaseMillis);
+        metrics.put("modelCache", fields("hits", pomResolver.modelCache.hits.get(), "misses", pomResolver.modelCache.misses.get()));
+        metrics.put("graphCache", fields("hits", graphCache.hits.get(), "misses", graphCache.misses.get(),
+                "entries", graphCache.entries.size()));
+        metrics.putAll(pomResolver.metrics());
+        return metrics;
+    }
+
+    /**
+     * A map of the given keys and values that keeps them in order.
+     */
+    private static Map<String, Object> fields(Object... keysAndValues) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            fields.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return fields;
+    }
+
+    private static String toJson(Object value, String indent) {
+        if (value instanceof Map<?, ?> map) {
+            String inner = indent + "  ";
+            return map.isEmpty() ? "{}" : map.entrySet().stream()
+                    .map(entry -> inner + toJson(String.valueOf(entry.getKey()), inner) + ": " + toJson(entry.getValue(), inner))
+                    .collect(Collectors.joining(",\n", "{\n", "\n" + indent + "}"));
+        }
+        if (value instanceof Collection<?> values) {
+            String inner = indent + "  ";
+            return values.isEmpty() ? "[]" : values.stream()
+                    .map(element -> inner + toJson(element, inner))
+                    .collect(Collectors.joining(",\n", "[\n", "\n" + indent + "]"));
+        }
+        if (value instanceof String string) {
+            return "\"" + string.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        }
+        return String.valueOf(value);
+    }
+
+    /**
+     * The directory holding maven-dep-graph's persistent caches: {@code $XDG_CACHE_HOME/maven-dep-graph}
+     * when set, otherwise {@code ~/.m2/maven-dep-graph}.
+     */
+    private static Path cacheDirectory() {
+        String xdgCacheHome = System.getenv("XDG_CACHE_HOME");
+        Path base = xdgCacheHome != null && !xdgCacheHome.isBlank()
+                ? Path.of(xdgCacheHome)
+                : Path.of(System.getProperty("user.home"), ".m2");
+        return base.resolve("maven-dep-graph");
+    }
+
+    /**
+     * Writes {@code content} to a temporary file beside {@code file} and moves it into place, so another
+     * run reading the file never sees half of it. The caches written this way are only an optimization
+     * for the next run, so failures are not reported; the method returns false, for the callers that
+     * need the file to check.
+     */
+    private static boolean writeAtomically(Path file, byte[] content) {
+        Path tempFile = null;
+        try {
+            Files.createDirectories(file.getParent());
+            tempFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".part");
+            Files.write(tempFile, content);
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            if (tempFile != null) {
+                try {
+                    Files.deleteIfExists(tempFile);
+                } catch (IOException ignored) {
+                    // Left behind as a .part file
+                }
+            }
+            return false;
         }
     }
 
@@ -194,10 +1291,7 @@ public class MavenDepGraph implements Command<CommandInvocation> {
     }
 
     private String depToGav(Dependency dependency) {
-        return String.format("%s:%s:%s",
-                dependency.getGroupId(),
-                dependency.getArtifactId(),
-                dependency.getVersion());
+        return dependency.getGroupId() + ":" + dependency.getArtifactId() + ":" + dependency.getVersion();
     }
 
     private Format getFormat(String option) {
@@ -214,70 +1308,336 @@ public class MavenDepGraph implements Command<CommandInvocation> {
         return format;
     }
 
-    private static class PomResolver {
-        private static final Pattern VERSION_RANGE_PATTERN = Pattern.compile("[\\[\\](),]");
+    private static class PomResolver implements AutoCloseable {
         private final Path localRepo;
         private final Set<String> remoteRepoUrls;
+        private final Map<Path, CompletableFuture<Path>> downloads = new ConcurrentHashMap<>();
+        private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+        private final int maxConnectionsPerHost;
+        private final ExecutorService fetchExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        private final HttpClient httpClient;
+        private final Duration requestTimeout;
+        private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+        private final AtomicLong hedged = new AtomicLong();
+        private final AtomicLong hedgesWon = new AtomicLong();
+        private final AtomicLong downloadCount = new AtomicLong();
+        private final AtomicLong downloadedBytes = new AtomicLong();
+        private final AtomicLong downloadNanos = new AtomicLong();
+        private final AtomicLong builds = new AtomicLong();
+        private final AtomicLong buildNanos = new AtomicLong();
+        private final AtomicLong pomWaitNanos = new AtomicLong();
+        private final AtomicLong ranges = new AtomicLong();
+        private final AtomicLong rangeNanos = new AtomicLong();
         private final ModelBuilder modelBuilder;
-        private final RepositorySystem repoSystem;
-        private final DefaultRepositorySystemSession repoSession;
+        private RepositorySystem repoSystem;
+        private DefaultRepositorySystemSession repoSession;
         private final List<RemoteRepository> remoteRepositories;
+        private final PomModelCache modelCache;
+        private final RepositoryMemory repositoryMemory;
+        private final VersionIndex versionIndex;
+        private final OfflineIndex offlineIndex;
 
-        PomResolver(Path localRepo, Set<String> remoteRepoUrls) {
+        PomResolver(Path localRepo, Set<String> remoteRepoUrls, int modelCacheSize, int maxConnectionsPerHost,
+                    RepositoryMemory repositoryMemory, Path metadataStore, Duration metadataTtl,
+                    Duration connectTimeout, Duration requestTimeout, OfflineIndex offlineIndex) {
             this.localRepo = localRepo;
-            this.remoteRepoUrls = new HashSet<>(remoteRepoUrls);
+            this.offlineIndex = offlineIndex;
+            this.requestTimeout = requestTimeout;
+            this.httpClient = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .followRedirects(HttpClient.Redirect.NORMAL)
+                    .connectTimeout(connectTimeout)
+                    .executor(fetchExecutor)
+                    .build();
+            this.repositoryMemory = repositoryMemory;
+            this.versionIndex = new VersionIndex(metadataStore, metadataTtl);
+            this.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+            this.modelCache = new PomModelCache(modelCacheSize);
+            this.remoteRepoUrls = new CopyOnWriteArraySet<>(remoteRepoUrls);
             this.modelBuilder = new DefaultModelBuilderFactory().newInstance();
-            this.repoSystem = new RepositorySystemSupplier().get();
-            this.repoSession = MavenRepositorySystemUtils.newSession();
-            this.repoSession.setLocalRepositoryManager(repoSystem.newLocalRepositoryManager(repoSession, new LocalRepository(localRepo.toFile())));
             this.remoteRepositories =  remoteRepoUrls.stream()
                     .map(url -> new RemoteRepository.Builder(repoId(url), "default", url).build()).toList();
         }
 
-        Model resolve(String groupId, String artifactId, String version) throws ModelBuildingException, UnresolvableModelException {
+        /**
+         * Forgets everything held in memory for the session: cached models, version metadata, and
+         * finished downloads, so failed ones are tried again.
+         */
+        void evict() {
+            modelCache.clear();
+            versionIndex.clear();
+            downloads.values().removeIf(CompletableFuture::isDone);
+        }
+
+        @Override
+        public synchronized void close() {
+            httpClient.close();
+            fetchExecutor.close();
+            if (repoSystem != null) {
+                repoSystem.shutdown();
+            }
+        }
+
+        ResolvedModel resolve(String groupId, String artifactId, String version) throws ModelBuildingException, UnresolvableModelException {
             try {
                 version = resolveVersionRange(groupId, artifactId, version);
             } catch (VersionRangeResolutionException e) {
                 throw new UnresolvableModelException(e.getMessage(), groupId, artifactId, version, e);
             }
 
-            DefaultModelBuildingRequest request = new DefaultModelBuildingRequest();
+            ResolveEvent event = new ResolveEvent();
+            event.begin();
+            long start = System.nanoTime();
+            try {
+                ResolvedModel model = buildModel(groupId, artifactId, version);
+                event.dependencies = model.dependencies().size();
+                event.sourcePoms = model.sourcePoms().size();
+                return model;
+            } finally {
+                builds.incrementAndGet();
+                buildNanos.addAndGet(System.nanoTime() - start);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.gav = groupId + ":" + artifactId + ":" + version;
+                    event.commit();
+                }
+            }
+        }
+
+        private ResolvedModel buildModel(String groupId, String artifactId, String version) throws ModelBuildingException, UnresolvableModelException {
+            DefaultModelBuildingRequest request = new DefaultModelBuildingRequest();
             request.setModelSource(new FileModelSource(getLocalPom(localRepo, remoteRepoUrls, groupId, artifactId, version).toFile()));
             request.setValidationLevel(ModelBuildingRequest.VALIDATION_LEVEL_MINIMAL);
             request.setProcessPlugins(false);
             request.setSystemProperties(System.getProperties());
             request.setModelResolver(new LocalRemoteModelResolver()); //localRepo, remoteRepoUrls, repoSystem, repoSession, remoteRepositories));
+            Set<String> sourcePoms = ConcurrentHashMap.newKeySet();
+            sourcePoms.add(groupId + ":" + artifactId + ":" + version);
+            request.setModelCache(modelCache.recordingInto(sourcePoms));
 
+            // Only the dependencies are kept, so the effective and raw models can be collected right away
             ModelBuildingResult result = modelBuilder.build(request);
-            return result.getEffectiveModel();
+            return new ResolvedModel(result.getEffectiveModel().getDependencies(), sourcePoms);
         }
 
-        private void downloadFromRemotes(Set<String> remoteRepoUrls, String groupId, String artifactId, String version, Path targetPath) throws IOException {
-            IOException lastFailure = null;
-            for (String repoUrl : remoteRepoUrls) {
-                String url = pomUrl(repoUrl, groupId, artifactId, version);
-                HttpURLConnection connection = null;
-                try {
-                    connection = (HttpURLConnection) URI.create(url).toURL().openConnection();
-                    int responseCode = connection.getResponseCode();
-                    if (responseCode == 200) {
-                        Files.createDirectories(targetPath.getParent());
-                        try (InputStream in = connection.getInputStream()) {
-                            Files.copy(in, targetPath, StandardCopyOption.REPLACE_EXISTING);
-                        }
-                        return;
+        /**
+         * Tries each repository in turn, moving on to the next one after a failure or non-200 response.
+         * The repository that last served the groupId goes first, and repositories known not to have the
+         * POM are skipped. All requests go through one shared HTTP/2 client, so connections are reused
+         * across POMs.
+         */
+        private CompletableFuture<Path> downloadFromRemotes(Set<String> remoteRepoUrls, String groupId, String artifactId, String version, Path targetPath) {
+            String gav = groupId + ":" + artifactId + ":" + version;
+            if (remoteRepoUrls.isEmpty()) {
+                return CompletableFuture.failedFuture(new IOException("No remote repositories configured for " + gav));
+            }
+            List<String> repoUrls = List.copyOf(remoteRepoUrls);
+            List<String> candidates = repositoryMemory.order(groupId, repoUrls).stream()
+                    .filter(repoUrl -> !repositoryMemory.isKnownMiss(repoUrl, gav))
+                    .toList();
+            HedgedDownload download = new HedgedDownload(candidates, repoUrls, groupId, artifactId, version, targetPath);
+            download.startNext(false);
+            return download.result;
+        }
+
+        /**
+         * Downloads a POM from the first of {@code candidates} that has it. The next repository is
+         * tried as soon as an attempt fails, and also, as a hedge, when an attempt has been waiting
+         * longer than the p95 latency of its repository, in which case the first good response wins.
+         * A slow or hung repository then costs about its usual p95 rather than the request timeout.
+         */
+        private class HedgedDownload {
+            private final List<String> candidates;
+            private final List<String> repoUrls;
+            private final String groupId;
+            private final String artifactId;
+            private final String version;
+            private final Path targetPath;
+            private final CompletableFuture<Path> result = new CompletableFuture<>();
+            private int next;
+            private int outstanding;
+            private Throwable lastFailure;
+
+            HedgedDownload(List<String> candidates, List<String> repoUrls, String groupId, String artifactId, String version, Path targetPath) {
+                this.candidates = candidates;
+                this.repoUrls = repoUrls;
+                this.groupId = groupId;
+                this.artifactId = artifactId;
+                this.version = version;
+                this.targetPath = targetPath;
+            }
+
+            synchronized void startNext(boolean hedge) {
+                if (result.isDone()) {
+                    return;
+                }
+                if (next == candidates.size()) {
+                    if (outstanding == 0) {
+                        result.completeExceptionally(lastFailure != null ? unwrap(lastFailure)
+                                : new IOException("Not found in any remote repository: " + groupId + ":" + artifactId + ":" + version));
                     }
-                    lastFailure = new IOException("HTTP " + responseCode + " for " + url);
-                } catch (IOException e) {
-                    lastFailure = e;
-                } finally {
-                    if (connection != null) {
-                        connection.disconnect();
+                    return;
+                }
+                String repoUrl = candidates.get(next++);
+                outstanding++;
+                if (hedge) {
+                    hedged.incrementAndGet();
+                }
+                CompletableFuture<Void> sent = new CompletableFuture<>();
+                CompletableFuture<Path> attempt = download(repoUrl, groupId, artifactId, version, targetPath, () -> sent.complete(null));
+                Duration hedgeDelay = latency(repoUrl).percentile(0.95);
+                if (next < candidates.size() && hedgeDelay != null) {
+                    // Waiting for a connection slot behind other downloads is not the repository being slow
+                    sent.thenRun(() -> CompletableFuture.delayedExecutor(hedgeDelay.toMillis(), TimeUnit.MILLISECONDS, fetchExecutor).execute(() -> {
+                        if (!attempt.isDone()) {
+                            startNext(true);
+                        }
+                    }));
+                }
+                attempt.whenComplete((path, failure) -> finished(repoUrl, hedge, path, failure));
+            }
+
+            private synchronized void finished(String repoUrl, boolean hedge, Path path, Throwable failure) {
+                outstanding--;
+                if (path != null) {
+                    if (result.complete(path)) {
+                        repositoryMemory.recordHit(groupId, repoUrl, repoUrls);
+                        if (hedge) {
+                            hedgesWon.incrementAndGet();
+                        }
                     }
+                    return;
                 }
+                lastFailure = failure;
+                startNext(false);
             }
-            throw lastFailure != null ? lastFailure
-                    : new IOException("No remote repositories configured for " + groupId + ":" + artifactId + ":" + version);
+        }
+
+        /**
+         * Downloads one POM from one repository. {@code onSend} runs once a connection slot is free and
+         * the request goes out, which is also where the recorded latency starts.
+         */
+        private CompletableFuture<Path> download(String repoUrl, String groupId, String artifactId, String version, Path targetPath,
+                                                 Runnable onSend) {
+            String url = pomUrl(repoUrl, groupId, artifactId, version);
+            DownloadEvent event = new DownloadEvent();
+            event.begin();
+            AtomicLong start = new AtomicLong();
+            return send(request(url), responseInfo ->
+                            responseInfo.statusCode() == 200
+                                    ? HttpResponse.BodySubscribers.ofByteArray()
+                                    : HttpResponse.BodySubscribers.replacing(new byte[0]),
+                    () -> {
+                        start.set(System.nanoTime());
+                        onSend.run();
+                    })
+                    .thenApply(response -> {
+                        long elapsed = System.nanoTime() - start.get();
+                        latency(repoUrl).record(Duration.ofNanos(elapsed));
+                        downloadCount.incrementAndGet();
+                        downloadNanos.addAndGet(elapsed);
+                        event.status = response.statusCode();
+                        try {
+                            if (response.statusCode() == 404 || response.statusCode() == 410) {
+                                repositoryMemory.recordMiss(repoUrl, groupId + ":" + artifactId + ":" + version);
+                            }
+                            if (response.statusCode() != 200) {
+                                throw new IOException("HTTP " + response.statusCode() + " for " + url);
+                            }
+                            event.bytes = response.body().length;
+                            downloadedBytes.addAndGet(event.bytes);
+                            // Model building reads the POM from the local repository, so here the write has to succeed
+                            if (!writeAtomically(targetPath, response.body())) {
+                                throw new IOException("Could not write " + targetPath);
+                            }
+                            return targetPath;
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .whenComplete((path, failure) -> {
+                        event.end();
+                        if (event.shouldCommit()) {
+                            event.gav = groupId + ":" + artifactId + ":" + version;
+                            event.repository = repoUrl;
+                            event.failure = failure != null ? unwrap(failure).getMessage() : null;
+                            event.commit();
+                        }
+                    });
+        }
+
+        private HttpRequest request(String url) {
+            return HttpRequest.newBuilder(URI.create(url)).timeout(requestTimeout).GET().build();
+        }
+
+        private LatencyHistogram latency(String repoUrl) {
+            return latencies.computeIfAbsent(repoUrl, url -> new LatencyHistogram());
+        }
+
+        String describeWork() {
+            return String.format("%d downloads, %d KB in %d ms; %d model builds in %d ms, %d ms of it waiting for POMs; "
+                            + "%d version ranges in %d ms",
+                    downloadCount.get(), downloadedBytes.get() / 1024, TimeUnit.NANOSECONDS.toMillis(downloadNanos.get()),
+                    builds.get(), TimeUnit.NANOSECONDS.toMillis(buildNanos.get()), TimeUnit.NANOSECONDS.toMillis(pomWaitNanos.get()),
+                    ranges.get(), TimeUnit.NANOSECONDS.toMillis(rangeNanos.get()));
+        }
+
+        Map<String, Object> metrics() {
+            Map<String, Object> metrics = new LinkedHashMap<>();
+            metrics.put("downloads", fields(
+                    "count", downloadCount.get(),
+                    "bytes", downloadedBytes.get(),
+                    "millis", TimeUnit.NANOSECONDS.toMillis(downloadNanos.get()),
+                    "hedged", hedged.get(),
+                    "hedgesWon", hedgesWon.get()));
+            metrics.put("modelBuilds", fields(
+                    "count", builds.get(),
+                    "millis", TimeUnit.NANOSECONDS.toMillis(buildNanos.get()),
+                    "pomWaitMillis", TimeUnit.NANOSECONDS.toMillis(pomWaitNanos.get())));
+            metrics.put("versionRanges", fields(
+                    "count", ranges.get(),
+                    "millis", TimeUnit.NANOSECONDS.toMillis(rangeNanos.get()),
+                    "fromMetadata", versionIndex.resolved.get(),
+                    "fallbacks", versionIndex.fallbacks.get()));
+            Map<String, Object> repositories = new LinkedHashMap<>();
+            latencies.forEach((repoUrl, histogram) -> {
+                if (histogram.count() > 0) {
+                    repositories.put(repoUrl, histogram.metrics());
+                }
+            });
+            metrics.put("repositories", repositories);
+            return metrics;
+        }
+
+        String describeLatencies() {
+            StringBuilder description = new StringBuilder(String.format("%d hedged downloads, %d won by the hedge",
+                    hedged.get(), hedgesWon.get()));
+            latencies.forEach((repoUrl, histogram) -> {
+                if (histogram.count() > 0) {
+                    description.append("\n  ").append(repoUrl).append(": ").append(histogram.describe());
+                }
+            });
+            return description.toString();
+        }
+
+        private <T> CompletableFuture<HttpResponse<T>> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) {
+            return send(request, bodyHandler, () -> { });
+        }
+
+        /**
+         * Sends a request on the shared client once a connection slot for its host is free, running
+         * {@code onSend} just before it goes out.
+         */
+        private <T> CompletableFuture<HttpResponse<T>> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler, Runnable onSend) {
+            URI uri = request.uri();
+            Semaphore permits = hostPermits.computeIfAbsent(uri.getScheme() + "://" + uri.getAuthority(),
+                    host -> new Semaphore(maxConnectionsPerHost));
+            return CompletableFuture.runAsync(() -> {
+                        permits.acquireUninterruptibly();
+                        onSend.run();
+                    }, fetchExecutor)
+                    .thenCompose(ignored -> httpClient.sendAsync(request, bodyHandler))
+                    .whenComplete((response, failure) -> permits.release());
         }
 
         private String repoId(String url) {
@@ -291,17 +1651,71 @@ public class MavenDepGraph implements Command<CommandInvocation> {
                                         String artifactId,
                                         String version) throws UnresolvableModelException {
             Path localPom = pomPath(localRepo, groupId, artifactId, version);
+            if (offlineIndex != null) {
+                if (offlineIndex.contains(groupId, artifactId, version)) {
+                    return localPom;
+                }
+                String gav = groupId + ":" + artifactId + ":" + version;
+                offlineIndex.misses.add(gav);
+                throw new UnresolvableModelException("Not in the offline index: " + gav, groupId, artifactId, version);
+            }
+            if (Files.exists(localPom)) {
+                return localPom;
+            }
+            long start = System.nanoTime();
+            try {
+                return fetch(localPom, groupId, artifactId, version).join();
+            } catch (CompletionException e) {
+                Throwable cause = unwrap(e);
+                throw new UnresolvableModelException(cause.getMessage(), groupId, artifactId, version, cause);
+            } finally {
+                pomWaitNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Starts downloading a POM in the background if it isn't in the local repository yet, so a later
+         * {@link #getLocalPom} finds it on disk or already in flight.
+         */
+        void prefetch(String groupId, String artifactId, String version) {
+            if (offlineIndex != null || version == null || VERSION_RANGE_PATTERN.matcher(version).find()) {
+                return;
+            }
+            Path localPom = pomPath(localRepo, groupId, artifactId, version);
             if (!Files.exists(localPom)) {
-                try {
-                    downloadFromRemotes(remoteRepoUrls, groupId, artifactId, version, localPom);
-                } catch (IOException e) {
-                    throw new UnresolvableModelException(e.getMessage(), groupId, artifactId, version, e);
+                fetch(localPom, groupId, artifactId, version);
+            }
+        }
+
+        // Only the first caller for a POM downloads it; everyone else shares the same in-flight download
+        private CompletableFuture<Path> fetch(Path localPom, String groupId, String artifactId, String version) {
+            CompletableFuture<Path> download = new CompletableFuture<>();
+            CompletableFuture<Path> inFlight = downloads.putIfAbsent(localPom, download);
+            if (inFlight != null) {
+                return inFlight;
+            }
+            downloadFromRemotes(remoteRepoUrls, groupId, artifactId, version, localPom).whenComplete((path, failure) -> {
+                if (failure != null) {
+                    // A timeout or 5xx may not happen again, so a later request for the POM gets a new download;
+                    // missing POMs are skipped by the repository memory instead
+                    downloads.remove(localPom, download);
+                    download.completeExceptionally(failure);
+                } else {
+                    download.complete(path);
                 }
+            });
+            return download;
+        }
+
+        private static Throwable unwrap(Throwable failure) {
+            while ((failure instanceof CompletionException || failure instanceof UncheckedIOException)
+                    && failure.getCause() != null) {
+                failure = failure.getCause();
             }
-            return localPom;
+            return failure;
         }
 
-        private Path pomPath(Path repoBase, String groupId, String artifactId, String version) {
+        private static Path pomPath(Path repoBase, String groupId, String artifactId, String version) {
             return repoBase
                     .resolve(groupId.replace('.', '/'))
                     .resolve(artifactId)
@@ -323,15 +1737,213 @@ public class MavenDepGraph implements Command<CommandInvocation> {
             if (version == null || !VERSION_RANGE_PATTERN.matcher(version).find()) {
                 return version;
             }
+            VersionRangeEvent event = new VersionRangeEvent();
+            event.begin();
+            long start = System.nanoTime();
+            String resolved = null;
+            try {
+                resolved = versionIndex.highestMatch(groupId, artifactId, version);
+                if (resolved == null && offlineIndex != null && offlineIndex.rescan(groupId, artifactId)) {
+                    versionIndex.forget(groupId, artifactId);
+                    resolved = versionIndex.highestMatch(groupId, artifactId, version);
+                }
+                event.source = "metadata";
+                if (resolved == null && offlineIndex != null) {
+                    offlineIndex.misses.add(groupId + ":" + artifactId + ":" + version);
+                    throw new VersionRangeResolutionException(null, "No version in the offline index matches "
+                            + version + " for " + groupId + ":" + artifactId);
+                }
+                if (resolved == null) {
+                    event.source = "repository system";
+                    resolved = resolveVersionRangeWithRepositorySystem(groupId, artifactId, version);
+                }
+                return resolved;
+            } finally {
+                ranges.incrementAndGet();
+                rangeNanos.addAndGet(System.nanoTime() - start);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.ga = groupId + ":" + artifactId;
+                    event.range = version;
+                    event.version = resolved;
+                    event.commit();
+                }
+            }
+        }
+
+        private String resolveVersionRangeWithRepositorySystem(String groupId, String artifactId, String version) throws VersionRangeResolutionException {
+            // The metadata was unavailable or had no match, so let the repository system have the final word
+            versionIndex.fallbacks.incrementAndGet();
             VersionRangeRequest request = new VersionRangeRequest();
             request.setArtifact(new DefaultArtifact(groupId, artifactId, "pom", version));
             request.setRepositories(remoteRepositories);
-            VersionRangeResult result = repoSystem.resolveVersionRange(repoSession, request);
-            Version highest = result.getHighestVersion();
-            if (highest == null) {
+            VersionRangeResult result = repositorySystem().resolveVersionRange(repoSession, request);
+            Version highestVersion = result.getHighestVersion();
+            if (highestVersion == null) {
                 throw new VersionRangeResolutionException(result, "No versions matched range " + version + " for " + groupId + ":" + artifactId);
             }
-            return highest.toString();
+            return highestVersion.toString();
+        }
+
+        /**
+         * Resolves version ranges from maven-metadata.xml. The metadata for a groupId:artifactId is fetched
+         * from every repository, and every range for that GA is then resolved in memory for {@code ttl},
+         * so a long-running {@code --serve} sees new releases once it has passed. The metadata is
+         * optionally kept on disk for as long.
+         */
+        private class VersionIndex {
+            private final GenericVersionScheme versionScheme = new GenericVersionScheme();
+            private final Map<String, LoadedVersions> versions = new ConcurrentHashMap<>();
+            private final Path store;
+            private final Duration ttl;
+            private final AtomicLong resolved = new AtomicLong();
+            private final AtomicLong fallbacks = new AtomicLong();
+
+            VersionIndex(Path store, Duration ttl) {
+                this.store = ttl.isZero() ? null : store;
+                this.ttl = ttl;
+            }
+
+            /**
+             * Returns the highest known version matching {@code range}, or null if there is none or the
+             * range can't be parsed.
+             */
+            String highestMatch(String groupId, String artifactId, String range) {
+                VersionConstraint constraint;
+                try {
+                    constraint = versionScheme.parseVersionConstraint(range);
+                } catch (InvalidVersionSpecificationException e) {
+                    return null;
+                }
+                String highest = versions.compute(groupId + ":" + artifactId, (ga, loaded) -> loaded == null || loaded.isExpired(ttl)
+                                ? new LoadedVersions(System.nanoTime(), load(groupId, artifactId)) : loaded)
+                        .versions().join().stream()
+                        .filter(constraint::containsVersion)
+                        .max(Comparator.naturalOrder())
+                        .map(Version::toString)
+                        .orElse(null);
+                if (highest != null) {
+                    resolved.incrementAndGet();
+                }
+                return highest;
+            }
+
+            void clear() {
+                versions.clear();
+            }
+
+            void forget(String groupId, String artifactId) {
+                versions.remove(groupId + ":" + artifactId);
+            }
+
+            // A load still in flight is shared whatever its age, so a TTL of 0 doesn't fetch the same metadata twice at once
+            private record LoadedVersions(long loadedAt, CompletableFuture<List<Version>> versions) {
+                boolean isExpired(Duration ttl) {
+                    return versions.isDone() && System.nanoTime() - loadedAt > ttl.toNanos();
+                }
+            }
+
+            String describe() {
+                return String.format("%d resolved from metadata of %d artifacts, %d resolved by the repository system",
+                        resolved.get(), versions.size(), fallbacks.get());
+            }
+
+            private CompletableFuture<List<Version>> load(String groupId, String artifactId) {
+                if (offlineIndex != null) {
+                    return CompletableFuture.completedFuture(offlineIndex.versions(groupId, artifactId).stream()
+                            .map(this::parseVersion)
+                            .filter(version -> version != null)
+                            .toList());
+                }
+                List<CompletableFuture<byte[]>> sources = new ArrayList<>();
+                Path localMetadata = localRepo.resolve(groupId.replace('.', '/')).resolve(artifactId).resolve("maven-metadata-local.xml");
+                if (Files.exists(localMetadata)) {
+                    sources.add(CompletableFuture.supplyAsync(() -> readQuietly(localMetadata), fetchExecutor));
+                }
+                for (String repoUrl : remoteRepoUrls) {
+                    sources.add(remoteMetadata(repoUrl, groupId, artifactId));
+                }
+                return CompletableFuture.allOf(sources.toArray(CompletableFuture[]::new))
+                        .thenApply(ignored -> sources.stream()
+                                .map(CompletableFuture::join)
+                                .filter(bytes -> bytes != null)
+                                .flatMap(bytes -> parseVersions(bytes).stream())
+                                .distinct()
+                                .map(this::parseVersion)
+                                .filter(version -> version != null)
+                                .toList());
+            }
+
+            private CompletableFuture<byte[]> remoteMetadata(String repoUrl, String groupId, String artifactId) {
+                Path stored = store == null ? null
+                        : store.resolve(groupId).resolve(artifactId).resolve("maven-metadata-" + repoId(repoUrl) + ".xml");
+                try {
+                    if (stored != null && Files.exists(stored)
+                            && Files.getLastModifiedTime(stored).toMillis() > System.currentTimeMillis() - ttl.toMillis()) {
+                        // An empty copy records that the repository had no metadata for the artifact
+                        byte[] bytes = Files.readAllBytes(stored);
+                        return CompletableFuture.completedFuture(bytes.length == 0 ? null : bytes);
+                    }
+                } catch (IOException e) {
+                    // Treat an unreadable copy as missing and fetch it again
+                }
+                String url = String.format("%s/%s/%s/maven-metadata.xml", repoUrl, groupId.replace('.', '/'), artifactId);
+                return send(request(url), HttpResponse.BodyHandlers.ofByteArray())
+                        .thenApply(response -> {
+                            int status = response.statusCode();
+                            if (status == 200) {
+                                if (stored != null) {
+                                    writeAtomically(stored, response.body());
+                                }
+                                return response.body();
+                            }
+                            // A 4xx answer is remembered like metadata, so the repository isn't asked again
+                            // within the TTL; a 5xx may be transient and is only skipped for this run
+                            if (stored != null && status >= 400 && status < 500) {
+                                writeAtomically(stored, new byte[0]);
+                            }
+                            return (byte[]) null;
+                        })
+                        .exceptionally(failure -> null);
+            }
+
+            private List<String> parseVersions(byte[] bytes) {
+                try {
+                    Metadata metadata = new MetadataXpp3Reader().read(new ByteArrayInputStream(bytes), false);
+                    return metadata.getVersioning() == null ? List.of() : metadata.getVersioning().getVersions();
+                } catch (IOException | XmlPullParserException e) {
+                    return List.of();
+                }
+            }
+
+            private Version parseVersion(String version) {
+                try {
+                    return versionScheme.parseVersion(version);
+                } catch (InvalidVersionSpecificationException e) {
+                    return null;
+                }
+            }
+
+            private byte[] readQuietly(Path path) {
+                try {
+                    return Files.readAllBytes(path);
+                } catch (IOException e) {
+                    return null;
+                }
+            }
+        }
+
+        /**
+         * The repository system is only needed for version ranges and takes a noticeable part of a warm,
+         * fully cached run to wire up, so it is created on first use.
+         */
+        private synchronized RepositorySystem repositorySystem() {
+            if (repoSystem == null) {
+                repoSystem = new RepositorySystemSupplier().get();
+                repoSession = MavenRepositorySystemUtils.newSession();
+                repoSession.setLocalRepositoryManager(repoSystem.newLocalRepositoryManager(repoSession, new LocalRepository(localRepo.toFile())));
+            }
+            return repoSystem;
         }
 
         private class LocalRemoteModelResolver implements ModelResolver {
@@ -380,4 +1992,1131 @@ public class MavenDepGraph implements Command<CommandInvocation> {
             }
         }
     }
+
+    /**
+     * A {@link ModelCache} shared by every model-building request in a run, so the raw parent models
+     * and imported dependency management of common parents (org.apache:apache, jackson-parent,
+     * junit-bom, ...) are read and interpolated once instead of once per artifact. Entries are keyed
+     * by GAV and cache tag, and the least recently used entry is evicted once {@code maxEntries} is
+     * reached.
+     */
+    private static class PomModelCache implements ModelCache {
+        private final Map<CacheKey, Object> entries;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+
+        PomModelCache(int maxEntries) {
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<CacheKey, Object> eldest) {
+                    return size() > maxEntries;
+                }
+            };
+        }
+
+        @Override
+        public void put(String groupId, String artifactId, String version, String tag, Object data) {
+            synchronized (entries) {
+                entries.put(new CacheKey(groupId, artifactId, version, tag), data);
+            }
+        }
+
+        @Override
+        public Object get(String groupId, String artifactId, String version, String tag) {
+            Object data;
+            synchronized (entries) {
+                data = entries.get(new CacheKey(groupId, artifactId, version, tag));
+            }
+            (data != null ? hits : misses).incrementAndGet();
+            return data;
+        }
+
+        /**
+         * Returns a view of this cache that adds the GAV of every parent or imported POM the model
+         * builder looks up to {@code sourcePoms}, whether or not the lookup is a hit.
+         */
+        ModelCache recordingInto(Set<String> sourcePoms) {
+            return new ModelCache() {
+                @Override
+                public void put(String groupId, String artifactId, String version, String tag, Object data) {
+                    sourcePoms.add(groupId + ":" + artifactId + ":" + version);
+                    PomModelCache.this.put(groupId, artifactId, version, tag, data);
+                }
+
+                @Override
+                public Object get(String groupId, String artifactId, String version, String tag) {
+                    sourcePoms.add(groupId + ":" + artifactId + ":" + version);
+                    return PomModelCache.this.get(groupId, artifactId, version, tag);
+                }
+            };
+        }
+
+        void clear() {
+            synchronized (entries) {
+                entries.clear();
+            }
+        }
+
+        String describe() {
+            long hitCount = hits.get();
+            long total = hitCount + misses.get();
+            return String.format("%d hits, %d misses (%.1f%% hit rate)",
+                    hitCount, total - hitCount, total == 0 ? 0.0 : 100.0 * hitCount / total);
+        }
+
+        private record CacheKey(String groupId, String artifactId, String version, String tag) {
+        }
+    }
+
+    /**
+     * Counts latencies in power-of-two millisecond buckets, so percentiles are known to within a
+     * factor of two without keeping every sample. Percentiles are reported as the upper bound of
+     * their bucket, and only once there are enough samples for them to mean something.
+     */
+    private static class LatencyHistogram {
+        private static final int BUCKETS = 18;
+        private static final int MIN_SAMPLES = 20;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+
+        void record(Duration latency) {
+            long millis = latency.toMillis();
+            counts.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis)));
+            max.accumulateAndGet(millis, Math::max);
+        }
+
+        Duration percentile(double fraction) {
+            long total = count();
+            if (total < MIN_SAMPLES) {
+                return null;
+            }
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += counts.get(bucket);
+                if (seen >= Math.ceil(total * fraction)) {
+                    return Duration.ofMillis(Math.min(1L << bucket, max.get()));
+                }
+            }
+            return Duration.ofMillis(max.get());
+        }
+
+        Map<String, Object> metrics() {
+            Map<String, Object> metrics = new LinkedHashMap<>();
+            metrics.put("responses", count());
+            Duration p50 = percentile(0.5);
+            if (p50 != null) {
+                metrics.put("p50Millis", p50.toMillis());
+                metrics.put("p95Millis", percentile(0.95).toMillis());
+            }
+            metrics.put("maxMillis", max.get());
+            return metrics;
+        }
+
+        String describe() {
+            StringBuilder description = new StringBuilder().append(count()).append(" responses");
+            Duration p50 = percentile(0.5);
+            Duration p95 = percentile(0.95);
+            if (p50 != null) {
+                description.append(", p50 <= ").append(p50.toMillis()).append(" ms, p95 <= ").append(p95.toMillis()).append(" ms");
+            }
+            description.append(", max ").append(max.get()).append(" ms [");
+            String separator = "";
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                long count = counts.get(bucket);
+                if (count > 0) {
+                    description.append(separator).append(bucket == BUCKETS - 1 ? ">= " + (1L << (bucket - 1)) : "< " + (1L << bucket))
+                            .append(" ms: ").append(count);
+                    separator = ", ";
+                }
+            }
+            return description.append("]").toString();
+        }
+
+        long count() {
+            long total = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                total += counts.get(bucket);
+            }
+            return total;
+        }
+    }
+
+    /**
+     * The dependencies of an effective model together with the GAVs of every POM that contributed to
+     * it: the artifact itself, its parents and any imported BOMs.
+     */
+    private record ResolvedModel(List<Dependency> dependencies, Set<String> sourcePoms) {
+    }
+
+    /**
+     * The resolved dependency graph. Each GAV is stored once in a node table and referred to by an int
+     * id everywhere else. While the walk runs, each resolved node's children are kept as an int array;
+     * {@link #freeze()} then renumbers the nodes in GAV order and packs all edges into compressed sparse
+     * row arrays ({@code offsets} and {@code targets}), which is the form the rest of the tool reads. Nodes that only appear as edge
+     * targets (test-scoped, filtered by depth, or failed to resolve) are not marked resolved.
+     */
+    private static class DependencyGraph {
+        private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+        private String[] gavs = new String[256];
+        private int[][] children = new int[256][];
+        private final BitSet resolved = new BitSet();
+        private int nodeCount;
+        private int[] offsets;
+        private int[] targets;
+
+        int intern(String gav) {
+            Integer id = ids.get(gav);
+            return id != null ? id : ids.computeIfAbsent(gav, this::addNode);
+        }
+
+        void putChildren(String parentGav, List<String> childGavs) {
+            // Intern outside the lock; addNode is called with the id table's own lock held
+            int parent = intern(parentGav);
+            int[] childIds = childGavs.stream().mapToInt(this::intern).toArray();
+            synchronized (this) {
+                thaw();
+                children[parent] = childIds;
+                resolved.set(parent);
+            }
+        }
+
+        synchronized void freeze() {
+            if (children == null) {
+                return;
+            }
+            renumber();
+            offsets = new int[nodeCount + 1];
+            for (int node = 0; node < nodeCount; node++) {
+                offsets[node + 1] = offsets[node] + (children[node] == null ? 0 : children[node].length);
+            }
+            targets = new int[offsets[nodeCount]];
+            for (int node = 0; node < nodeCount; node++) {
+                if (children[node] != null) {
+                    System.arraycopy(children[node], 0, targets, offsets[node], children[node].length);
+                }
+            }
+            children = null;
+        }
+
+        // Walker threads intern nodes in the order they happen to finish; numbering them by GAV makes the
+        // output of a walk the same on every run
+        private void renumber() {
+            int[] order = IntStream.range(0, nodeCount).boxed()
+                    .sorted(Comparator.comparing(node -> gavs[node]))
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+            int[] newIds = new int[nodeCount];
+            for (int id = 0; id < nodeCount; id++) {
+                newIds[order[id]] = id;
+            }
+            String[] sortedGavs = new String[gavs.length];
+            int[][] sortedChildren = new int[gavs.length][];
+            BitSet sortedResolved = new BitSet(nodeCount);
+            for (int node = 0; node < nodeCount; node++) {
+                int id = newIds[node];
+                sortedGavs[id] = gavs[node];
+                ids.put(gavs[node], id);
+                if (children[node] != null) {
+                    sortedChildren[id] = Arrays.stream(children[node]).map(child -> newIds[child]).toArray();
+                }
+                if (resolved.get(node)) {
+                    sortedResolved.set(id);
+                }
+            }
+            gavs = sortedGavs;
+            children = sortedChildren;
+            resolved.clear();
+            resolved.or(sortedResolved);
+        }
+
+        synchronized int nodeCount() {
+            return nodeCount;
+        }
+
+        synchronized int resolvedCount() {
+            return resolved.cardinality();
+        }
+
+        synchronized int edgeCount() {
+            freeze();
+            return targets.length;
+        }
+
+        synchronized String gav(int node) {
+            return gavs[node];
+        }
+
+        synchronized boolean isResolved(int node) {
+            return resolved.get(node);
+        }
+
+        /**
+         * Returns the weakly connected components of the graph that contain at least one resolved node,
+         * as sets of node ids, in the order of their lowest node.
+         */
+        synchronized List<BitSet> components() {
+            freeze();
+            int[] parents = new int[nodeCount];
+            for (int node = 0; node < nodeCount; node++) {
+                parents[node] = node;
+            }
+            for (int node = 0; node < nodeCount; node++) {
+                for (int edge = offsets[node]; edge < offsets[node + 1]; edge++) {
+                    int a = root(parents, node);
+                    int b = root(parents, targets[edge]);
+                    if (a != b) {
+                        parents[Math.max(a, b)] = Math.min(a, b);
+                    }
+                }
+            }
+            Map<Integer, BitSet> components = new LinkedHashMap<>();
+            for (int node = 0; node < nodeCount; node++) {
+                components.computeIfAbsent(root(parents, node), root -> new BitSet()).set(node);
+            }
+            return components.values().stream()
+                    .filter(component -> component.intersects(resolved))
+                    .toList();
+        }
+
+        private static int root(int[] parents, int node) {
+            while (parents[node] != node) {
+                parents[node] = parents[parents[node]];
+                node = parents[node];
+            }
+            return node;
+        }
+
+        /**
+         * Returns the index of the node's first edge; its edges run up to {@code edgeStart(node + 1)}.
+         */
+        synchronized int edgeStart(int node) {
+            freeze();
+            return offsets[node];
+        }
+
+        synchronized int target(int edge) {
+            freeze();
+            return targets[edge];
+        }
+
+        private synchronized int addNode(String gav) {
+            thaw();
+            if (nodeCount == gavs.length) {
+                gavs = Arrays.copyOf(gavs, nodeCount * 2);
+                children = Arrays.copyOf(children, nodeCount * 2);
+            }
+            gavs[nodeCount] = gav;
+            return nodeCount++;
+        }
+
+        // Unpacks the CSR arrays again when more nodes or edges are added after the graph was frozen
+        private void thaw() {
+            if (children != null) {
+                return;
+            }
+            children = new int[gavs.length][];
+            for (int node = 0; node < nodeCount; node++) {
+                if (resolved.get(node)) {
+                    children[node] = Arrays.copyOfRange(targets, offsets[node], offsets[node + 1]);
+                }
+            }
+            offsets = null;
+            targets = null;
+        }
+    }
+
+    /**
+     * The difference between two resolved graphs. Nodes are compared by groupId:artifactId, so a
+     * version bump shows up as one changed node rather than a removed and an added one, and edges are
+     * compared by the groupId:artifactId of both ends. An edge that is in both graphs is only part of
+     * the difference when one of its ends changed version.
+     */
+    private static class GraphDiff {
+        private final Map<String, Set<String>> oldVersions;
+        private final Map<String, Set<String>> newVersions;
+        private final Set<String> oldEdges;
+        private final Set<String> newEdges;
+
+        private GraphDiff(Map<String, Set<String>> oldVersions, Map<String, Set<String>> newVersions,
+                          Set<String> oldEdges, Set<String> newEdges) {
+            this.oldVersions = oldVersions;
+            this.newVersions = newVersions;
+            this.oldEdges = oldEdges;
+            this.newEdges = newEdges;
+        }
+
+        static GraphDiff of(DependencyGraph oldGraph, DependencyGraph newGraph) {
+            Map<String, Set<String>> oldVersions = new TreeMap<>();
+            Map<String, Set<String>> newVersions = new TreeMap<>();
+            Set<String> oldEdges = new TreeSet<>();
+            Set<String> newEdges = new TreeSet<>();
+            collect(oldGraph, oldVersions, oldEdges);
+            collect(newGraph, newVersions, newEdges);
+            return new GraphDiff(oldVersions, newVersions, oldEdges, newEdges);
+        }
+
+        // Edges are kept as "fromGA\ttoGA"
+        private static void collect(DependencyGraph graph, Map<String, Set<String>> versions, Set<String> edges) {
+            for (int node = 0; node < graph.nodeCount(); node++) {
+                if (!graph.isResolved(node)) {
+                    continue;
+                }
+                String from = graph.gav(node);
+                addVersion(versions, from);
+                for (int edge = graph.edgeStart(node); edge < graph.edgeStart(node + 1); edge++) {
+                    String to = graph.gav(graph.target(edge));
+                    addVersion(versions, to);
+                    edges.add(ga(from) + "\t" + ga(to));
+                }
+            }
+        }
+
+        private static void addVersion(Map<String, Set<String>> versions, String gav) {
+            versions.computeIfAbsent(ga(gav), ga -> new TreeSet<>()).add(gav.substring(gav.lastIndexOf(':') + 1));
+        }
+
+        private static String ga(String gav) {
+            return gav.substring(0, gav.lastIndexOf(':'));
+        }
+
+        private List<String> added() {
+            return newVersions.keySet().stream().filter(ga -> !oldVersions.containsKey(ga)).toList();
+        }
+
+        private List<String> removed() {
+            return oldVersions.keySet().stream().filter(ga -> !newVersions.containsKey(ga)).toList();
+        }
+
+        private List<String> changed() {
+            return newVersions.keySet().stream()
+                    .filter(ga -> oldVersions.containsKey(ga) && !oldVersions.get(ga).equals(newVersions.get(ga)))
+                    .toList();
+        }
+
+        private List<String> addedEdges() {
+            return newEdges.stream().filter(edge -> !oldEdges.contains(edge)).toList();
+        }
+
+        private List<String> removedEdges() {
+            return oldEdges.stream().filter(edge -> !newEdges.contains(edge)).toList();
+        }
+
+        private List<String> changedEdges() {
+            Set<String> changed = new HashSet<>(changed());
+            return newEdges.stream()
+                    .filter(edge -> oldEdges.contains(edge))
+                    .filter(edge -> Arrays.stream(edge.split("\t")).anyMatch(changed::contains))
+                    .toList();
+        }
+
+        String describe() {
+            return String.format("%d added, %d removed, %d changed artifacts; %d added, %d removed edges",
+                    added().size(), removed().size(), changed().size(), addedEdges().size(), removedEdges().size());
+        }
+
+        /**
+         * Writes the difference as DOT: added artifacts and edges in green, removed ones in red and
+         * dashed, and changed artifacts, with the edges leading to or from them, in orange. Unchanged
+         * artifacts only appear, in grey, as the other end of such an edge.
+         */
+        void writeDot(Writer out) throws IOException {
+            out.write("digraph MavenDepGraphDiff {\n");
+            out.write("\tnode [shape=\"box\",style=\"rounded\",fontname=\"Helvetica\",fontsize=\"14\"]\n");
+            out.write("\tedge [fontsize=\"10\",fontname=\"Helvetica\"]\n");
+            Set<String> written = new HashSet<>();
+            for (String ga : added()) {
+                writeNode(out, ga, String.join(", ", newVersions.get(ga)), "green3", "rounded");
+                written.add(ga);
+            }
+            for (String ga : removed()) {
+                writeNode(out, ga, String.join(", ", oldVersions.get(ga)), "red", "rounded,dashed");
+                written.add(ga);
+            }
+            for (String ga : changed()) {
+                writeNode(out, ga, String.join(", ", oldVersions.get(ga)) + " -> " + String.join(", ", newVersions.get(ga)),
+                        "darkorange", "rounded,bold");
+                written.add(ga);
+            }
+            Map<String, String> edges = new LinkedHashMap<>();
+            addedEdges().forEach(edge -> edges.put(edge, "[color=\"green3\"]"));
+            removedEdges().forEach(edge -> edges.put(edge, "[color=\"red\",style=\"dashed\"]"));
+            changedEdges().forEach(edge -> edges.put(edge, "[color=\"darkorange\"]"));
+            for (String edge : edges.keySet()) {
+                for (String ga : edge.split("\t")) {
+                    if (written.add(ga)) {
+                        Set<String> versions = newVersions.getOrDefault(ga, oldVersions.get(ga));
+                        writeNode(out, ga, String.join(", ", versions), "grey50", "rounded");
+                    }
+                }
+            }
+            for (Map.Entry<String, String> edge : edges.entrySet()) {
+                String[] ends = edge.getKey().split("\t");
+                out.write("\t\"" + ends[0] + "\" -> \"" + ends[1] + "\" " + edge.getValue() + "\n");
+            }
+            out.write("}\n");
+        }
+
+        private static void writeNode(Writer out, String ga, String versions, String color, String style) throws IOException {
+            out.write("\t\"" + ga + "\" [label=\"" + ga.replace(":", ":\\n") + ":\\n" + versions
+                    + "\",color=\"" + color + "\",fontcolor=\"" + color + "\",style=\"" + style + "\"]\n");
+        }
+
+        /**
+         * Writes the difference as JSON: {@code added}, {@code removed} and {@code changed} artifacts
+         * with their versions, and {@code addedEdges}, {@code removedEdges} and {@code changedEdges}
+         * between groupId:artifactId pairs.
+         */
+        void writeJson(Writer out) throws IOException {
+            Map<String, Object> diff = new LinkedHashMap<>();
+            diff.put("added", versionsOf(added(), newVersions));
+            diff.put("removed", versionsOf(removed(), oldVersions));
+            Map<String, Object> changed = new LinkedHashMap<>();
+            changed().forEach(ga -> changed.put(ga, fields("from", String.join(", ", oldVersions.get(ga)),
+                    "to", String.join(", ", newVersions.get(ga)))));
+            diff.put("changed", changed);
+            diff.put("addedEdges", edgesOf(addedEdges()));
+            diff.put("removedEdges", edgesOf(removedEdges()));
+            diff.put("changedEdges", edgesOf(changedEdges()));
+            out.write(toJson(diff, ""));
+            out.write("\n");
+        }
+
+        private static Map<String, Object> versionsOf(List<String> gas, Map<String, Set<String>> versions) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            gas.forEach(ga -> result.put(ga, String.join(", ", versions.get(ga))));
+            return result;
+        }
+
+        private static List<Object> edgesOf(List<String> edges) {
+            return edges.stream()
+                    .map(edge -> edge.split("\t"))
+                    .<Object>map(ends -> fields("from", ends[0], "to", ends[1]))
+                    .toList();
+        }
+    }
+
+    /**
+     * Persistent cache of resolved edges, keyed by GAV, so repeat runs can skip model building
+     * entirely. Each entry records the size and modification time of every POM that contributed to
+     * the artifact's effective model, and is ignored as soon as any of them changes in the local
+     * repository. The file is a small binary format with a shared string table.
+     */
+    private static class GraphCache {
+        private static final int MAGIC = 0x4D444743;
+        private static final int FORMAT_VERSION = 1;
+        private final Path file;
+        private final Path localRepo;
+        private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+        private final Map<Stamp, Boolean> currentPoms = new ConcurrentHashMap<>();
+        private final Map<String, Long> lastUsed = new ConcurrentHashMap<>();
+        private final AtomicLong uses = new AtomicLong();
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private volatile boolean dirty;
+
+        private GraphCache(Path file, Path localRepo) {
+            this.file = file;
+            this.localRepo = localRepo;
+        }
+
+        static GraphCache disabled(Path localRepo) {
+            return new GraphCache(null, localRepo);
+        }
+
+        static GraphCache load(Path file, Path localRepo) {
+            GraphCache cache = new GraphCache(file, localRepo);
+            if (Files.exists(file)) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                    cache.read(in);
+                } catch (IOException e) {
+                    System.err.println("WARNING: Ignoring unreadable graph cache " + file + ": " + e.getMessage());
+                    cache.entries.clear();
+                }
+            }
+            return cache;
+        }
+
+        List<Edge> lookup(String gav) {
+            Entry entry = file == null ? null : entries.get(gav);
+            if (entry != null && entry.stamps().stream().allMatch(this::isCurrent)) {
+                lastUsed.put(gav, uses.incrementAndGet());
+                hits.incrementAndGet();
+                return entry.children();
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+
+        void store(String gav, Collection<String> sourcePoms, List<Edge> children) {
+            if (file == null) {
+                return;
+            }
+            List<Stamp> stamps = new ArrayList<>();
+            for (String pomGav : sourcePoms) {
+                Stamp stamp = stamp(pomGav);
+                if (stamp == null) {
+                    return;
+                }
+                stamps.add(stamp);
+            }
+            entries.put(gav, new Entry(stamps, List.copyOf(children)));
+            lastUsed.put(gav, uses.incrementAndGet());
+            dirty = true;
+        }
+
+        /**
+         * Forgets which POMs were found unchanged, so they are checked against the local repository
+         * again. Within one run they are checked once, but a server outlives the files it checked.
+         */
+        void revalidate() {
+            currentPoms.clear();
+        }
+
+        /**
+         * Drops the least recently used {@code fraction} of the entries.
+         */
+        void evict(double fraction) {
+            List<String> oldest = entries.keySet().stream()
+                    .sorted(Comparator.comparingLong(gav -> lastUsed.getOrDefault(gav, 0L)))
+                    .limit((long) (entries.size() * fraction))
+                    .toList();
+            oldest.forEach(gav -> {
+                entries.remove(gav);
+                lastUsed.remove(gav);
+            });
+            currentPoms.clear();
+            dirty = true;
+        }
+
+        void save() throws IOException {
+            if (file == null || !dirty) {
+                return;
+            }
+            Map<String, Integer> strings = new LinkedHashMap<>();
+            entries.forEach((gav, entry) -> {
+                strings.putIfAbsent(gav, strings.size());
+                entry.stamps().forEach(stamp -> strings.putIfAbsent(stamp.gav(), strings.size()));
+                entry.children().forEach(edge -> strings.putIfAbsent(edge.gav(), strings.size()));
+            });
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(strings.size());
+                for (String string : strings.keySet()) {
+                    out.writeUTF(string);
+                }
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    out.writeInt(strings.get(entry.getKey()));
+                    out.writeInt(entry.getValue().stamps().size());
+                    for (Stamp stamp : entry.getValue().stamps()) {
+                        out.writeInt(strings.get(stamp.gav()));
+                        out.writeLong(stamp.size());
+                        out.writeLong(stamp.lastModified());
+                    }
+                    out.writeInt(entry.getValue().children().size());
+                    for (Edge edge : entry.getValue().children()) {
+                        out.writeInt(strings.get(edge.gav()));
+                        out.writeBoolean(edge.expand());
+                    }
+                }
+            }
+            writeAtomically(file, bytes.toByteArray());
+        }
+
+        String describe() {
+            return file == null ? "disabled"
+                    : String.format("%d hits, %d misses (%d entries in %s)", hits.get(), misses.get(), entries.size(), file);
+        }
+
+        private void read(DataInputStream in) throws IOException {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unrecognized cache format");
+            }
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = in.readUTF();
+            }
+            int entryCount = in.readInt();
+            for (int i = 0; i < entryCount; i++) {
+                String gav = strings[in.readInt()];
+                List<Stamp> stamps = new ArrayList<>();
+                int stampCount = in.readInt();
+                for (int j = 0; j < stampCount; j++) {
+                    stamps.add(new Stamp(strings[in.readInt()], in.readLong(), in.readLong()));
+                }
+                List<Edge> children = new ArrayList<>();
+                int childCount = in.readInt();
+                for (int j = 0; j < childCount; j++) {
+                    children.add(new Edge(strings[in.readInt()], in.readBoolean()));
+                }
+                entries.put(gav, new Entry(stamps, children));
+            }
+        }
+
+        private boolean isCurrent(Stamp stamp) {
+            return currentPoms.computeIfAbsent(stamp, s -> s.equals(stamp(s.gav())));
+        }
+
+        private Stamp stamp(String gav) {
+            String[] parts = gav.split(":");
+            if (parts.length != 3) {
+                return null;
+            }
+            Path pom = PomResolver.pomPath(localRepo, parts[0], parts[1], parts[2]);
+            try {
+                return new Stamp(gav, Files.size(pom), Files.getLastModifiedTime(pom).toMillis());
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        /**
+         * A child of a cached artifact. Test-scoped children are recorded as edges but not expanded.
+         */
+        record Edge(String gav, boolean expand) {
+        }
+
+        private record Stamp(String gav, long size, long lastModified) {
+        }
+
+        private record Entry(List<Stamp> stamps, List<Edge> children) {
+        }
+    }
+
+    /**
+     * Every POM in a local repository, for resolving without a network: the versions on disk for each
+     * groupId:artifactId. A POM's existence and, from the repository layout, its path follow from
+     * that, and so does the answer to any version range, all without touching the file system. Built
+     * by scanning the repository once and saved as a text file with one line per groupId:artifactId
+     * followed by its versions, tab-separated. Artifacts installed since are found by checking the
+     * disk on a miss, so only misses cost I/O.
+     */
+    private static class OfflineIndex {
+        private final Path localRepo;
+        private final Map<String, List<String>> versions;
+        private final Set<String> misses = new ConcurrentSkipListSet<>();
+
+        private OfflineIndex(Path localRepo, Map<String, List<String>> versions) {
+            this.localRepo = localRepo;
+            this.versions = new ConcurrentHashMap<>(versions);
+        }
+
+        /**
+         * Loads the index from {@code file}, or scans {@code localRepo} when there is no usable
+         * index or {@code rebuild} is set, and saves the result to {@code file} unless it is null.
+         */
+        static OfflineIndex load(Path file, Path localRepo, boolean rebuild) throws IOException {
+            if (file != null && !rebuild && Files.exists(file)) {
+                Map<String, List<String>> versions = new HashMap<>();
+                try (var lines = Files.lines(file)) {
+                    lines.map(line -> line.split("\t"))
+                            .filter(fields -> fields.length > 1)
+                            .forEach(fields -> versions.put(fields[0], List.of(fields).subList(1, fields.length)));
+                }
+                return new OfflineIndex(localRepo, versions);
+            }
+
+            long start = System.nanoTime();
+            OfflineIndex index = scan(localRepo);
+            System.err.printf("Indexed %d POMs of %d artifacts in %s (%d ms)%n",
+                    index.versions.values().stream().mapToInt(List::size).sum(), index.versions.size(), localRepo,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            if (file != null) {
+                writeAtomically(file, index.versions.entrySet().stream()
+                        .map(entry -> entry.getKey() + "\t" + String.join("\t", entry.getValue()) + "\n")
+                        .collect(Collectors.joining())
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+            return index;
+        }
+
+        /**
+         * Finds every {@code groupId/artifactId/version/artifactId-version.pom} under {@code localRepo}.
+         */
+        private static OfflineIndex scan(Path localRepo) throws IOException {
+            Map<String, List<String>> versions = new TreeMap<>();
+            if (!Files.isDirectory(localRepo)) {
+                return new OfflineIndex(localRepo, versions);
+            }
+            try (var files = Files.walk(localRepo)) {
+                files.filter(file -> file.getFileName().toString().endsWith(".pom"))
+                        .map(localRepo::relativize)
+                        .filter(pom -> pom.getNameCount() >= 4)
+                        .forEach(pom -> {
+                            int count = pom.getNameCount();
+                            String version = pom.getName(count - 2).toString();
+                            String artifactId = pom.getName(count - 3).toString();
+                            if (pom.getFileName().toString().equals(artifactId + "-" + version + ".pom")) {
+                                String groupId = pom.subpath(0, count - 3).toString().replace(pom.getFileSystem().getSeparator(), ".");
+                                versions.computeIfAbsent(groupId + ":" + artifactId, ga -> new ArrayList<>()).add(version);
+                            }
+                        });
+            }
+            return new OfflineIndex(localRepo, versions);
+        }
+
+        boolean contains(String groupId, String artifactId, String version) {
+            if (versions(groupId, artifactId).contains(version)) {
+                return true;
+            }
+            if (Files.exists(PomResolver.pomPath(localRepo, groupId, artifactId, version))) {
+                rescan(groupId, artifactId);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Lists the versions of one groupId:artifactId on disk again, for when the index predates some
+         * of them, and returns whether any were new.
+         */
+        boolean rescan(String groupId, String artifactId) {
+            Path artifactDir = localRepo.resolve(groupId.replace('.', '/')).resolve(artifactId);
+            List<String> found = new ArrayList<>();
+            try (var dirs = Files.list(artifactDir)) {
+                dirs.filter(dir -> Files.exists(dir.resolve(artifactId + "-" + dir.getFileName() + ".pom")))
+                        .forEach(dir -> found.add(dir.getFileName().toString()));
+            } catch (IOException e) {
+                return false;
+            }
+            List<String> known = versions(groupId, artifactId);
+            if (known.containsAll(found)) {
+                return false;
+            }
+            versions.put(groupId + ":" + artifactId, List.copyOf(found));
+            return true;
+        }
+
+        List<String> versions(String groupId, String artifactId) {
+            return versions.getOrDefault(groupId + ":" + artifactId, List.of());
+        }
+    }
+
+    /**
+     * What previous runs learned about the configured repositories: which repository answered 404 for
+     * which GAV (remembered for a limited time), and which repository last served each groupId, so
+     * that one can be tried first. Persisted as a small tab-separated text file.
+     */
+    private static class RepositoryMemory {
+        private final Path file;
+        private final Duration missTtl;
+        private final Map<String, Long> misses = new ConcurrentHashMap<>();
+        private final Map<String, String> affinity = new ConcurrentHashMap<>();
+        private final AtomicLong skippedMisses = new AtomicLong();
+        private final AtomicLong savedByAffinity = new AtomicLong();
+        private volatile boolean dirty;
+
+        private RepositoryMemory(Path file, Duration missTtl) {
+            this.file = file;
+            this.missTtl = missTtl;
+        }
+
+        static RepositoryMemory disabled() {
+            return new RepositoryMemory(null, Duration.ZERO);
+        }
+
+        static RepositoryMemory load(Path file, Duration missTtl) {
+            RepositoryMemory memory = new RepositoryMemory(file, missTtl);
+            if (Files.exists(file)) {
+                long now = System.currentTimeMillis();
+                try {
+                    for (String line : Files.readAllLines(file)) {
+                        String[] fields = line.split("\t");
+                        if (fields.length == 4 && "miss".equals(fields[0]) && Long.parseLong(fields[3]) > now) {
+                            memory.misses.put(missKey(fields[1], fields[2]), Long.parseLong(fields[3]));
+                        } else if (fields.length == 3 && "affinity".equals(fields[0])) {
+                            memory.affinity.put(fields[1], fields[2]);
+                        }
+                    }
+                } catch (IOException | NumberFormatException e) {
+                    System.err.println("WARNING: Ignoring unreadable repository memory " + file + ": " + e.getMessage());
+                    memory.misses.clear();
+                    memory.affinity.clear();
+                }
+            }
+            return memory;
+        }
+
+        /**
+         * Returns the repositories in the order they should be probed for {@code groupId}.
+         */
+        List<String> order(String groupId, List<String> repoUrls) {
+            String preferred = affinity.get(groupId);
+            if (preferred == null || !repoUrls.contains(preferred)) {
+                return repoUrls;
+            }
+            List<String> ordered = new ArrayList<>(repoUrls.size());
+            ordered.add(preferred);
+            repoUrls.stream().filter(url -> !url.equals(preferred)).forEach(ordered::add);
+            return ordered;
+        }
+
+        boolean isKnownMiss(String repoUrl, String gav) {
+            Long expiresAt = misses.get(missKey(repoUrl, gav));
+            if (expiresAt != null && expiresAt > System.currentTimeMillis()) {
+                skippedMisses.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        void recordMiss(String repoUrl, String gav) {
+            if (file != null) {
+                misses.put(missKey(repoUrl, gav), System.currentTimeMillis() + missTtl.toMillis());
+                dirty = true;
+            }
+        }
+
+        void recordHit(String groupId, String repoUrl, List<String> repoUrls) {
+            if (repoUrl.equals(affinity.get(groupId))) {
+                // Every repository listed ahead of this one would otherwise have been probed first
+                savedByAffinity.addAndGet(repoUrls.indexOf(repoUrl));
+            } else if (file != null) {
+                affinity.put(groupId, repoUrl);
+                dirty = true;
+            }
+        }
+
+        void save() {
+            if (file == null || !dirty) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            List<String> lines = new ArrayList<>();
+            misses.forEach((key, expiresAt) -> {
+                if (expiresAt > now) {
+                    lines.add("miss\t" + key + "\t" + expiresAt);
+                }
+            });
+            affinity.forEach((groupId, repoUrl) -> lines.add("affinity\t" + groupId + "\t" + repoUrl));
+
+            writeAtomically(file, lines.stream().map(line -> line + "\n").collect(Collectors.joining())
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+
+        String describe() {
+            return String.format("%d saved (%d known misses skipped, %d avoided by groupId affinity)",
+                    skippedMisses.get() + savedByAffinity.get(), skippedMisses.get(), savedByAffinity.get());
+        }
+
+        private static String missKey(String repoUrl, String gav) {
+            return repoUrl + "\t" + gav;
+        }
+    }
+
+    @Name("maven.depgraph.Download")
+    @Label("POM Download")
+    @Category({"Maven", "Dependency Graph"})
+    @Description("One request for a POM to one repository")
+    private static class DownloadEvent extends Event {
+        @Label("GAV")
+        String gav;
+        @Label("Repository")
+        String repository;
+        @Label("HTTP Status")
+        int status;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Failure")
+        String failure;
+    }
+
+    @Name("maven.depgraph.Resolve")
+    @Label("Model Resolution")
+    @Category({"Maven", "Dependency Graph"})
+    @Description("Building the effective model of one artifact, including waiting for its POMs")
+    private static class ResolveEvent extends Event {
+        @Label("GAV")
+        String gav;
+        @Label("Dependencies")
+        int dependencies;
+        @Label("Source POMs")
+        int sourcePoms;
+    }
+
+    @Name("maven.depgraph.VersionRange")
+    @Label("Version Range Resolution")
+    @Category({"Maven", "Dependency Graph"})
+    private static class VersionRangeEvent extends Event {
+        @Label("Group and Artifact")
+        String ga;
+        @Label("Range")
+        String range;
+        @Label("Resolved Version")
+        String version;
+        @Label("Source")
+        String source;
+    }
+
+    @Name("maven.depgraph.Output")
+    @Label("Graph Output")
+    @Category({"Maven", "Dependency Graph"})
+    @Description("Emitting and rendering the graph")
+    private static class OutputEvent extends Event {
+        @Label("File")
+        String file;
+        @Label("Artifacts")
+        int nodes;
+        @Label("Edges")
+        int edges;
+    }
+
+    /**
+     * Turns a DOT file into an image file of the given format.
+     */
+    private interface Renderer {
+        void render(Path dotFile, String format, Path outputFile) throws IOException, InterruptedException;
+
+        /**
+         * Whether several renders may run at the same time.
+         */
+        boolean isParallel();
+    }
+
+    /**
+     * Renders with a native Graphviz {@code dot} binary in its own process.
+     */
+    private record NativeDotRenderer(Path executable) implements Renderer {
+        @Override
+        public void render(Path dotFile, String format, Path outputFile) throws IOException, InterruptedException {
+            Process process = new ProcessBuilder(executable.toString(), "-T" + format, "-o", outputFile.toString(), dotFile.toString())
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                throw new IOException(executable + " exited with code " + exitCode + " rendering " + outputFile);
+            }
+        }
+
+        @Override
+        public boolean isParallel() {
+            return true;
+        }
+    }
+
+    /**
+     * Renders in-process with graphviz-java. Its engines are neither fast nor safe to share between
+     * threads, so it is only the fallback when no {@code dot} binary is available, and renders are
+     * serialized.
+     */
+    private class GraphvizJavaRenderer implements Renderer {
+        @Override
+        public void render(Path dotFile, String format, Path outputFile) throws IOException {
+            synchronized (GraphvizJavaRenderer.class) {
+                Graphviz.fromFile(dotFile.toFile())
+                        .render(getFormat(format))
+                        .toFile(outputFile.toFile());
+            }
+        }
+
+        @Override
+        public boolean isParallel() {
+            return false;
+        }
+    }
+
+    /**
+     * Combines separately rendered images into one, laid out on a grid that is roughly square.
+     */
+    private static class ImageTiler {
+        private static final Pattern SVG_ROOT = Pattern.compile("<svg\\b[^>]*>", Pattern.DOTALL);
+        private static final Pattern SVG_SIZE = Pattern.compile("\\b(width|height)=\"([\\d.]+)[a-z]*\"");
+        private static final int GAP = 20;
+
+        static void tile(List<Path> images, String format, Path outputFile) throws IOException {
+            switch (format) {
+                case "png" -> tilePng(images, outputFile);
+                case "svg" -> tileSvg(images, outputFile);
+                default -> throw new IOException("Cannot combine " + format + " images");
+            }
+        }
+
+        private static void tilePng(List<Path> images, Path outputFile) throws IOException {
+            List<BufferedImage> tiles = new ArrayList<>();
+            for (Path image : images) {
+                tiles.add(ImageIO.read(image.toFile()));
+            }
+            int[][] positions = layout(tiles.stream().map(tile -> new double[]{tile.getWidth(), tile.getHeight()}).toList());
+            int[] size = positions[positions.length - 1];
+            BufferedImage combined = new BufferedImage(size[0], size[1], BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = combined.createGraphics();
+            try {
+                graphics.setColor(Color.WHITE);
+                graphics.fillRect(0, 0, size[0], size[1]);
+                for (int i = 0; i < tiles.size(); i++) {
+                    graphics.drawImage(tiles.get(i), positions[i][0], positions[i][1], null);
+                }
+            } finally {
+                graphics.dispose();
+            }
+            ImageIO.write(combined, "png", outputFile.toFile());
+        }
+
+        private static void tileSvg(List<Path> images, Path outputFile) throws IOException {
+            List<String> roots = new ArrayList<>();
+            List<String> bodies = new ArrayList<>();
+            List<double[]> sizes = new ArrayList<>();
+            for (Path image : images) {
+                String svg = Files.readString(image);
+                Matcher root = SVG_ROOT.matcher(svg);
+                if (!root.find()) {
+                    throw new IOException("No <svg> element in " + image);
+                }
+                double[] size = new double[2];
+                Matcher attribute = SVG_SIZE.matcher(root.group());
+                while (attribute.find()) {
+                    size["width".equals(attribute.group(1)) ? 0 : 1] = Double.parseDouble(attribute.group(2));
+                }
+                roots.add(SVG_SIZE.matcher(root.group()).replaceAll("").replaceFirst("^<svg", ""));
+                bodies.add(svg.substring(root.end()));
+                sizes.add(size);
+            }
+            int[][] positions = layout(sizes);
+            int[] size = positions[positions.length - 1];
+            try (Writer out = Files.newBufferedWriter(outputFile, StandardCharsets.UTF_8)) {
+                out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n");
+                out.write(String.format("<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" "
+                        + "width=\"%dpt\" height=\"%dpt\" viewBox=\"0 0 %d %d\">%n", size[0], size[1], size[0], size[1]));
+                for (int i = 0; i < bodies.size(); i++) {
+                    // Each component keeps its own root element, now positioned inside the combined image
+                    out.write(String.format("<svg x=\"%d\" y=\"%d\" width=\"%s\" height=\"%s\"", positions[i][0], positions[i][1],
+                            sizes.get(i)[0], sizes.get(i)[1]));
+                    out.write(roots.get(i));
+                    out.write(bodies.get(i));
+                }
+                out.write("</svg>\n");
+            }
+        }
+
+        /**
+         * Places tiles of the given sizes left to right in rows of {@code ceil(sqrt(n))}. Returns one
+         * {x, y} position per tile followed by the {width, height} of the whole image.
+         */
+        private static int[][] layout(List<double[]> sizes) {
+            int columns = (int) Math.ceil(Math.sqrt(sizes.size()));
+            int[][] positions = new int[sizes.size() + 1][];
+            int x = 0;
+            int y = 0;
+            int rowHeight = 0;
+            int width = 0;
+            for (int i = 0; i < sizes.size(); i++) {
+                if (i > 0 && i % columns == 0) {
+                    y += rowHeight + GAP;
+                    x = 0;
+                    rowHeight = 0;
+                }
+                positions[i] = new int[]{x, y};
+                x += (int) Math.ceil(sizes.get(i)[0]) + GAP;
+                rowHeight = Math.max(rowHeight, (int) Math.ceil(sizes.get(i)[1]));
+                width = Math.max(width, x - GAP);
+            }
+            positions[sizes.size()] = new int[]{width, y + rowHeight};
+            return positions;
+        }
+    }
 }
@@ -0,0 +1,320 @@
+/// usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.openjdk.jmh:jmh-core:1.37
+//DEPS org.openjdk.jmh:jmh-generator-annprocess:1.37
+//SOURCES MavenDepGraph.java
+//JAVA 21+
+
+package bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.SimpleFileServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks for maven-dep-graph, run against a synthetic repository so results are repeatable
+ * and comparable between commits. The repository is generated under a temporary directory and served
+ * over HTTP on the loopback interface, so downloads exercise the same client code as a real remote.
+ * There are no round trips or TLS handshakes to wait for, though, so a cold walk mostly measures the
+ * CPU the client spends per request; changes meant to hide network latency need a real remote.
+ * <p>
+ * Any JMH command line option may be given, e.g. {@code -p fanOut=2,4} or {@code coldWalk}. Unless
+ * told otherwise, results are also written as JSON to {@code maven-dep-graph-bench.json}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MavenDepGraphBench {
+    private static final String RESULT_FILE = "maven-dep-graph-bench.json";
+    private static final String ROOT = "bench.level0:artifact-0:1.0";
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        if (commandLine.getIncludes().isEmpty()) {
+            options.include(MavenDepGraphBench.class.getName());
+        }
+        if (commandLine.getResult().hasValue() || commandLine.getResultFormat().hasValue()) {
+            new Runner(options.build()).run();
+        } else {
+            new Runner(options.resultFormat(ResultFormatType.JSON).result(RESULT_FILE).build()).run();
+        }
+    }
+
+    /**
+     * The generated repository, shaped by the parameters, and the tool entry points. The root
+     * artifact sits at level 0 and every artifact above the last level depends on {@code fanOut}
+     * artifacts of the next level, which holds at most {@code width} artifacts. Every artifact
+     * inherits from a chain of {@code parentChain} parent POMs, and a {@code rangeDensity} fraction of
+     * the dependencies is declared with a version range rather than a fixed version. A depth of 7 and a
+     * width of 100 make a graph of 321 artifacts, about the size of a typical application's tree.
+     */
+    @State(Scope.Benchmark)
+    public static class Fixture {
+        @Param("3")
+        public int fanOut;
+        @Param({"5", "7"})
+        public int depth;
+        @Param({"50", "100"})
+        public int width;
+        @Param("3")
+        public int parentChain;
+        @Param({"0.0", "0.2"})
+        public double rangeDensity;
+
+        Path remoteRepo;
+        Path warmLocalRepo;
+        Path warmCacheDir;
+        HttpServer server;
+        ExecutorService serverExecutor;
+        String repoUrl;
+        List<String> gavs;
+        Object resolvedGraph;
+
+        private MethodHandle resolve;
+        private MethodHandle buildModels;
+        private MethodHandle writeDot;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Throwable {
+            Class<?> tool = Class.forName("MavenDepGraph");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            resolve = lookup.findStatic(tool, "benchmarkResolve",
+                    MethodType.methodType(tool, Path.class, String.class, Path.class, List.class, int.class));
+            buildModels = lookup.findStatic(tool, "benchmarkBuildModels",
+                    MethodType.methodType(int.class, Path.class, String.class, List.class));
+            writeDot = lookup.findStatic(tool, "benchmarkWriteDot",
+                    MethodType.methodType(void.class, tool, Writer.class));
+
+            remoteRepo = Files.createTempDirectory("maven-dep-graph-bench-remote");
+            server = SimpleFileServer.createFileServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                    remoteRepo, SimpleFileServer.OutputLevel.NONE);
+            // The default executor serves one request at a time, which would time the server rather than the client
+            serverExecutor = Executors.newVirtualThreadPerTaskExecutor();
+            server.setExecutor(serverExecutor);
+            server.start();
+            repoUrl = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+            gavs = generateRepository(remoteRepo);
+
+            warmLocalRepo = Files.createTempDirectory("maven-dep-graph-bench-local");
+            warmCacheDir = Files.createTempDirectory("maven-dep-graph-bench-cache");
+            resolvedGraph = resolve(warmLocalRepo, warmCacheDir);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            server.stop(0);
+            serverExecutor.shutdownNow();
+            delete(remoteRepo);
+            delete(warmLocalRepo);
+            delete(warmCacheDir);
+        }
+
+        Object resolve(Path localRepo, Path cacheDir) throws Throwable {
+            return resolve.invoke(localRepo, repoUrl, cacheDir, List.of(ROOT), 16);
+        }
+
+        int buildModels() throws Throwable {
+            return (int) buildModels.invoke(warmLocalRepo, repoUrl, gavs);
+        }
+
+        void writeDot(Writer out) throws Throwable {
+            writeDot.invoke(resolvedGraph, out);
+        }
+
+        /**
+         * Writes the POMs and their maven-metadata.xml, and returns the GAVs of the artifacts (not
+         * the parents). Generation is seeded, so every run of a parameter combination sees the same
+         * repository. The topmost POMs redefine {@code central} as the served repository, so the
+         * super POM doesn't send metadata requests for version ranges to Maven Central.
+         */
+        private List<String> generateRepository(Path repo) throws IOException {
+            Random random = new Random(42);
+            String repositories = "  <repositories>\n    <repository>\n      <id>central</id>\n      <url>" + repoUrl
+                    + "</url>\n    </repository>\n  </repositories>\n";
+            for (int parent = 0; parent < parentChain; parent++) {
+                String inherited = parent + 1 < parentChain ? parentElement("parent-" + (parent + 1)) : "";
+                String properties = parent + 1 == parentChain
+                        ? "  <properties>\n    <bench.version>1.0</bench.version>\n  </properties>\n" + repositories : "";
+                writePom(repo, "bench.parent", "parent-" + parent,
+                        inherited + "  <packaging>pom</packaging>\n" + properties);
+            }
+
+            List<String> artifacts = new ArrayList<>();
+            for (int level = 0; level < depth; level++) {
+                int count = (int) Math.min(width, Math.pow(fanOut, level));
+                for (int index = 0; index < count; index++) {
+                    StringBuilder dependencies = new StringBuilder();
+                    if (level + 1 < depth) {
+                        int next = (int) Math.min(width, Math.pow(fanOut, level + 1));
+                        dependencies.append("  <dependencies>\n");
+                        for (int child = 0; child < fanOut; child++) {
+                            String version = random.nextDouble() < rangeDensity ? "[1.0,2.0)"
+                                    : parentChain > 0 ? "${bench.version}" : "1.0";
+                            dependencies.append("    <dependency>\n")
+                                    .append("      <groupId>bench.level").append(level + 1).append("</groupId>\n")
+                                    .append("      <artifactId>artifact-").append((index * fanOut + child) % next).append("</artifactId>\n")
+                                    .append("      <version>").append(version).append("</version>\n")
+                                    .append("    </dependency>\n");
+                        }
+                        dependencies.append("  </dependencies>\n");
+                    }
+                    String inherited = parentChain > 0 ? parentElement("parent-0") : repositories;
+                    writePom(repo, "bench.level" + level, "artifact-" + index, inherited + dependencies);
+                    artifacts.add("bench.level" + level + ":artifact-" + index + ":1.0");
+                }
+            }
+            return artifacts;
+        }
+
+        private static String parentElement(String artifactId) {
+            return "  <parent>\n    <groupId>bench.parent</groupId>\n    <artifactId>" + artifactId
+                    + "</artifactId>\n    <version>1.0</version>\n  </parent>\n";
+        }
+
+        private static void writePom(Path repo, String groupId, String artifactId, String body) throws IOException {
+            Path dir = repo.resolve(groupId.replace('.', '/')).resolve(artifactId);
+            Files.createDirectories(dir.resolve("1.0"));
+            Files.writeString(dir.resolve("1.0").resolve(artifactId + "-1.0.pom"), """
+                    <project xmlns="http://maven.apache.org/POM/4.0.0">
+                      <modelVersion>4.0.0</modelVersion>
+                    %s  <groupId>%s</groupId>
+                      <artifactId>%s</artifactId>
+                      <version>1.0</version>
+                    </project>
+                    """.formatted(body, groupId, artifactId));
+            Files.writeString(dir.resolve("maven-metadata.xml"), """
+                    <metadata>
+                      <groupId>%s</groupId>
+                      <artifactId>%s</artifactId>
+                      <versioning>
+                        <latest>1.0</latest>
+                        <release>1.0</release>
+                        <versions>
+                          <version>1.0</version>
+                        </versions>
+                      </versioning>
+                    </metadata>
+                    """.formatted(groupId, artifactId));
+        }
+    }
+
+    /**
+     * An empty local repository for each invocation, so every POM is downloaded again.
+     */
+    @State(Scope.Thread)
+    public static class ColdRepository {
+        Path localRepo;
+
+        @Setup(Level.Invocation)
+        public void setUp() throws IOException {
+            localRepo = Files.createTempDirectory("maven-dep-graph-bench-cold");
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws IOException {
+            delete(localRepo);
+        }
+    }
+
+    /**
+     * Resolves the whole graph from an empty local repository: downloads, model building and the walk.
+     */
+    @Benchmark
+    public Object coldWalk(Fixture fixture, ColdRepository cold) throws Throwable {
+        return fixture.resolve(cold.localRepo, null);
+    }
+
+    /**
+     * Resolves the whole graph again with every POM on disk and the graph cache populated.
+     */
+    @Benchmark
+    public Object warmWalk(Fixture fixture) throws Throwable {
+        return fixture.resolve(fixture.warmLocalRepo, fixture.warmCacheDir);
+    }
+
+    /**
+     * Builds the effective model of every artifact from the local repository, without walking.
+     */
+    @Benchmark
+    public int modelBuilding(Fixture fixture) throws Throwable {
+        return fixture.buildModels();
+    }
+
+    /**
+     * Emits the resolved graph as DOT into a writer that discards it.
+     */
+    @Benchmark
+    public void dotEmission(Fixture fixture, Blackhole blackhole) throws Throwable {
+        fixture.writeDot(new Writer() {
+            @Override
+            public void write(char[] buffer, int offset, int length) {
+                blackhole.consume(buffer);
+                blackhole.consume(length);
+            }
+
+            @Override
+            public void write(String text) {
+                blackhole.consume(text);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+}
@@ -1,24 +1,71 @@
 /// usr/bin/env jbang "$0" "$@" ; exit $?
-//JAVA 17+
+//JAVA 21+
 //DEPS org.aesh:aesh:3.8
 //DEPS com.fasterxml.jackson.core:jackson-core:2.21.2
 //DEPS com.fasterxml.jackson.core:jackson-databind:2.21.2
 //DEPS com.fasterxml.jackson.core:jackson-annotations:2.21
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.text.SimpleDateFormat;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
-import java.util.Date;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.aesh.AeshRuntimeRunner;
 import org.aesh.command.Command;
@@ -33,7 +80,15 @@ import org.aesh.command.option.Option;
         generateHelp = true)
 public class mvnsrch implements Command<CommandInvocation> {
     // https://central.sonatype.org/search/rest-api-guide/
-    private static final String BASE_URL = "https://search.maven.org/solrsearch/select?wt=json&core=gav&q=";
+    private static final String DEFAULT_URL = "https://search.maven.org/solrsearch/select";
+    private static final String DEFAULT_METADATA_URL = "https://repo.maven.apache.org/maven2";
+    private static final Pattern RELEASE_PATTERN = Pattern.compile("<release>\\s*([^<\\s]+)\\s*</release>");
+    private static final Pattern LATEST_PATTERN = Pattern.compile("<latest>\\s*([^<\\s]+)\\s*</latest>");
+    private static final Pattern VERSION_PATTERN = Pattern.compile("<version>\\s*([^<\\s]+)\\s*</version>");
+    // The most rows the search API returns in one response
+    private static final int PAGE_SIZE = 200;
+    // Streamed and batch results are printed as they arrive, so the coordinate column can't be sized to fit them
+    private static final int STREAMED_COORDINATE_WIDTH = 50;
 
     @Option(name = "ga", description = "Group:Artifact")
     String groupArtifact;
@@ -47,13 +102,59 @@ public class mvnsrch implements Command<CommandInvocation> {
     String artifactId;
     @Option(shortName = 'r', name = "rows", description = "Number of rows to return", defaultValue = "20")
     int rows;
-    @Option(shortName = 's', name = "sort", description = "Field to sort by: (a)rtifact, (g)group, (i)d, (v)ersion, (d)ate updated",
-            defaultValue = "i")
+    @Option(shortName = 's', name = "sort", description = "Field to sort by: (a)rtifact, (g)group, (i)d, (v)ersion, (d)ate updated, "
+            + "or (n)one to print documents as they are received", defaultValue = "i")
     String sortField;
     @Option(shortName = 'd', name = "descending", hasValue = false, description = "Sort results in descending order")
     boolean descending;
+    @Option(name = "all", hasValue = false, description = "Return every matching document, ignoring --rows")
+    boolean all;
+    @Option(name = "top", description = "Print only the first documents in sort order, keeping no more than this many in memory; 0 for all",
+            defaultValue = "0")
+    int top;
+    @Option(name = "concurrency", description = "Number of result pages or batch queries fetched at once", defaultValue = "4")
+    int concurrency;
+    @Option(name = "batch", description = "Run every group:artifact query in this file, one per line or as a JSON array")
+    String batchFile;
+    @Option(name = "format", description = "Output format: table or jsonl (JSON Lines)", defaultValue = "table")
+    String format;
+    @Option(name = "rate", description = "Maximum requests per second sent to the server; 0 for no limit", defaultValue = "0")
+    double rate;
+    @Option(name = "url", description = "URL of the search API", defaultValue = DEFAULT_URL)
+    String searchUrl;
+    @Option(name = "latest", hasValue = false, description = "Print only the newest release of --ga, or of each batch query, "
+            + "as group:artifact:version, from the repository's maven-metadata.xml")
+    boolean latest;
+    @Option(name = "metadata-url", description = "Repository whose maven-metadata.xml --latest reads", defaultValue = DEFAULT_METADATA_URL)
+    String metadataUrl;
+    @Option(name = "watch", hasValue = false, description = "Keep polling --ga, or every batch query, and print only versions "
+            + "published since the first poll")
+    boolean watch;
+    @Option(name = "interval", description = "Seconds between polls in watch mode, varied by up to 10% either way", defaultValue = "300")
+    int interval;
+    @Option(name = "polls", description = "Number of polls before watch mode exits; 0 to poll until interrupted", defaultValue = "0")
+    int polls;
+    @Option(name = "build-index", hasValue = false, description = "Index the artifacts and classes of a local repository, "
+            + "so searches are answered locally when the index has a match")
+    boolean buildIndex;
+    @Option(name = "repository", description = "Local repository to index (default: ~/.m2/repository)")
+    String repository;
+    @Option(name = "refresh", hasValue = false, description = "Ignore cached responses and query the server again")
+    boolean refresh;
+    @Option(name = "cache-ttl", description = "Minutes a cached response is reused for; 0 disables the cache", defaultValue = "60")
+    int cacheTtl;
+    @Option(name = "cache-size", description = "Maximum size of the response cache in megabytes", defaultValue = "50")
+    int cacheSize;
 
     private List<String> parameters = new ArrayList<>();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private ResponseCache cache;
+    private HttpClient client;
+    private long nextRequestNanos;
+    private LocalIndex localIndex;
+    private boolean localIndexOpened;
+    private final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd hh:mm a (zzz)")
+            .withZone(ZoneId.systemDefault());
 
     public static void main(String... args) {
         AeshRuntimeRunner.builder()
@@ -64,12 +165,84 @@ public class mvnsrch implements Command<CommandInvocation> {
 
     @Override
     public CommandResult execute(CommandInvocation invocation) {
-        if (groupArtifact != null) {
-            String[] coords = groupArtifact.split(":");
-            if (coords.length < 2) {
-                throw new RuntimeException("Invalid group:artifact coordinates");
+        if (!"table".equals(format) && !"jsonl".equals(format)) {
+            System.err.println("Error: Unsupported format: " + format + " (expected table or jsonl)");
+            return CommandResult.FAILURE;
+        }
+        if (buildIndex) {
+            Path repo = repository != null ? Path.of(repository) : Path.of(System.getProperty("user.home"), ".m2", "repository");
+            try {
+                LocalIndex.build(repo, cacheDirectory().resolve(LocalIndex.FILE_NAME));
+                return CommandResult.SUCCESS;
+            } catch (IOException e) {
+                System.err.println("Error: Unable to index " + repo + ": " + e.getMessage());
+                return CommandResult.FAILURE;
+            }
+        }
+        cache = new ResponseCache(cacheDirectory(), Duration.ofMinutes(cacheTtl), cacheSize * 1024L * 1024L);
+        if (watch) {
+            try {
+                List<String> queries = batchFile != null ? readBatch(Path.of(batchFile))
+                        : groupArtifact != null ? List.of(groupArtifact)
+                        : groupId != null && artifactId != null ? List.of(groupId + ":" + artifactId) : List.of();
+                if (queries.isEmpty()) {
+                    System.err.println("Error: --watch requires --ga, both -g and -a, or --batch");
+                    return CommandResult.FAILURE;
+                }
+                watch(queries);
+                return CommandResult.SUCCESS;
+            } catch (IOException e) {
+                System.err.println("Error: Unable to read " + batchFile + ": " + e.getMessage());
+                return CommandResult.FAILURE;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return CommandResult.SUCCESS;
+            } finally {
+                if (client != null) {
+                    client.close();
+                }
             }
-            parameters.add("g:" + coords[0] + "+AND+a:" + coords[1]);
+        }
+        if (batchFile != null) {
+            try {
+                List<String> queries = readBatch(Path.of(batchFile));
+                if (latest) {
+                    return runBatch(queries, this::printLatest) ? CommandResult.SUCCESS : CommandResult.FAILURE;
+                }
+                printHeader(STREAMED_COORDINATE_WIDTH);
+                return runBatch(queries, this::printSearch) ? CommandResult.SUCCESS : CommandResult.FAILURE;
+            } catch (IOException e) {
+                System.err.println("Error: Unable to read " + batchFile + ": " + e.getMessage());
+                return CommandResult.FAILURE;
+            } finally {
+                if (client != null) {
+                    client.close();
+                }
+            }
+        }
+
+        if (latest) {
+            String coordinates = groupArtifact != null ? groupArtifact
+                    : groupId != null && artifactId != null ? groupId + ":" + artifactId : null;
+            if (coordinates == null) {
+                System.err.println("Error: --latest requires --ga, both -g and -a, or --batch");
+                return CommandResult.FAILURE;
+            }
+            try {
+                printLatest(coordinates);
+                return CommandResult.SUCCESS;
+            } catch (RuntimeException e) {
+                System.err.println("Error: " + coordinates + ": " + (e.getMessage() == null ? e : e.getMessage()));
+                return CommandResult.FAILURE;
+            } finally {
+                if (client != null) {
+                    client.close();
+                }
+            }
+        }
+
+        if (groupArtifact != null) {
+            parameters.add(groupArtifactQuery(groupArtifact));
         } else {
             if (groupId != null) {
                 parameters.add("g:" + groupId);
@@ -93,56 +266,1100 @@ public class mvnsrch implements Command<CommandInvocation> {
             return CommandResult.FAILURE;
         }
 
-        String url = BASE_URL + String.join("+AND+", parameters) + "&rows=" + rows;
-
-        outputResults(sendRequest(url));
+        // The terms are ANDed, so their order doesn't matter; sorting them gives one cache entry per query
+        parameters.sort(Comparator.naturalOrder());
+        String query = String.join("+AND+", parameters);
+        try {
+            if ("n".equals(sortField)) {
+                printHeader(STREAMED_COORDINATE_WIDTH);
+                AtomicInteger printed = new AtomicInteger();
+                search(query, doc -> {
+                    if (top <= 0 || printed.getAndIncrement() < top) {
+                        printDocument(null, doc, STREAMED_COORDINATE_WIDTH);
+                    }
+                });
+            } else {
+                TopDocuments docs = new TopDocuments(new DocComparator(sortField, descending), top);
+                search(query, docs);
+                outputResults(docs.sorted());
+            }
+        } finally {
+            if (client != null) {
+                client.close();
+            }
+        }
 
         return CommandResult.SUCCESS;
     }
 
-    private void outputResults(SearchResult searchResult) {
-        List<Document> docs = searchResult.response().docs();
+    private static String groupArtifactQuery(String groupArtifact) {
+        String[] coords = groupArtifact.split(":");
+        if (coords.length < 2) {
+            throw new RuntimeException("Invalid group:artifact coordinates");
+        }
+        return "g:" + coords[0] + "+AND+a:" + coords[1];
+    }
+
+    /**
+     * Passes the documents matching the query to {@code sink} as they are parsed, possibly from
+     * several threads when the results span several pages. A query the local index has a match for
+     * is answered from it instead.
+     */
+    private void search(String query, Consumer<Document> sink) {
+        LocalIndex index = refresh ? null : localIndex();
+        if (index != null && index.search(query.split("\\+AND\\+"), all ? Integer.MAX_VALUE : rows, sink)) {
+            return;
+        }
+        String url = searchUrl + "?wt=json&core=gav&q=" + query;
+        if (all || rows > PAGE_SIZE) {
+            fetchPages(url, sink);
+        } else {
+            sendRequest(url + "&rows=" + rows, sink);
+        }
+    }
+
+    /**
+     * Reads the group:artifact queries of a batch, either a JSON array of strings or one per line,
+     * skipping blank lines and {@code #} comments.
+     */
+    private List<String> readBatch(Path file) throws IOException {
+        String content = Files.readString(file, StandardCharsets.UTF_8);
+        if (content.strip().startsWith("[")) {
+            return mapper.readValue(content, new TypeReference<List<String>>() {
+            });
+        }
+        return content.lines()
+                .map(String::strip)
+                .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                .toList();
+    }
+
+    /**
+     * Runs {@code task} for each query on virtual threads, with at most {@code concurrency} of them
+     * in flight. The task prints its own results, so the output is in completion order. A failed
+     * query is reported on stderr and doesn't stop the others. Returns whether every query
+     * succeeded.
+     */
+    private boolean runBatch(List<String> queries, Consumer<String> task) {
+        long start = System.nanoTime();
+        int failures = runConcurrently(queries, task);
+        long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        System.err.printf("Ran %d of %d queries in %.1f s (%.1f queries/s)%n", queries.size() - failures,
+                queries.size(), elapsedMillis / 1000.0, queries.size() * 1000.0 / elapsedMillis);
+        return failures == 0;
+    }
+
+    /**
+     * The concurrent part of {@link #runBatch}, also used by every poll of watch mode. Returns the
+     * number of queries that failed.
+     */
+    private int runConcurrently(List<String> queries, Consumer<String> task) {
+        Semaphore inFlight = new Semaphore(Math.max(1, concurrency));
+        AtomicInteger failures = new AtomicInteger();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (String query : queries) {
+                inFlight.acquireUninterruptibly();
+                executor.submit(() -> {
+                    try {
+                        task.accept(query);
+                    } catch (RuntimeException e) {
+                        failures.incrementAndGet();
+                        System.err.println("Error: " + query + ": " + (e.getMessage() == null ? e : e.getMessage()));
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        }
+        return failures.get();
+    }
+
+    /**
+     * Polls the queries every {@code interval} seconds, give or take a random tenth so that many
+     * watchers don't poll in step, over the one client. The first poll records what each query
+     * already has; after that, a version is printed when it wasn't seen before and is no older than
+     * the newest one seen. Requests carry the ETag and Last-Modified of the previous response, so
+     * when the server supports them an unchanged query costs a 304. Each poll is summarized on
+     * stderr.
+     */
+    private void watch(List<String> queries) throws InterruptedException {
+        printHeader(STREAMED_COORDINATE_WIDTH);
+        Map<String, WatchState> states = new ConcurrentHashMap<>();
+        System.err.printf("Watching %d queries every %d s%n", queries.size(), interval);
+        for (int poll = 1; polls <= 0 || poll <= polls; poll++) {
+            if (poll > 1) {
+                long millis = TimeUnit.SECONDS.toMillis(interval);
+                Thread.sleep(Math.max(0, millis + ThreadLocalRandom.current().nextLong(-millis / 10, millis / 10 + 1)));
+            }
+            AtomicInteger newVersions = new AtomicInteger();
+            AtomicInteger notModified = new AtomicInteger();
+            AtomicLong bytes = new AtomicLong();
+            long start = System.nanoTime();
+            int failures = runConcurrently(queries, query -> {
+                WatchState state = states.computeIfAbsent(query, ignored -> new WatchState());
+                PollResult result = pollQuery(query, state);
+                newVersions.addAndGet(result.newVersions());
+                bytes.addAndGet(result.bytes());
+                if (result.notModified()) {
+                    notModified.incrementAndGet();
+                }
+            });
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            System.err.printf("Poll %d at %s: %d new versions, %d of %d queries not modified, %d failed, %.1f KB in %d ms%n",
+                    poll, LocalTime.now().truncatedTo(ChronoUnit.SECONDS), newVersions.get(), notModified.get(),
+                    queries.size(), failures, bytes.get() / 1024.0, elapsedMillis);
+        }
+    }
+
+    private PollResult pollQuery(String query, WatchState state) {
+        String url = searchUrl + "?wt=json&core=gav&q=" + groupArtifactQuery(query) + "&rows=" + rows;
+        HttpRequest.Builder request = HttpRequest.newBuilder().uri(URI.create(url));
+        synchronized (state) {
+            if (state.etag != null) {
+                request.header("If-None-Match", state.etag);
+            }
+            if (state.lastModified != null) {
+                request.header("If-Modified-Since", state.lastModified);
+            }
+        }
+        try {
+            awaitRateLimit();
+            HttpResponse<InputStream> response = client().send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+            if (response.statusCode() == 304) {
+                response.body().close();
+                return new PollResult(0, 0, true);
+            }
+            if (response.statusCode() != 200) {
+                response.body().close();
+                throw new RuntimeException("Request failed with status code: " + response.statusCode());
+            }
+            List<Document> docs = new ArrayList<>();
+            CountingInputStream body = new CountingInputStream(response.body());
+            try (body) {
+                parse(body, docs::add);
+            }
+            List<Document> added = new ArrayList<>();
+            synchronized (state) {
+                state.etag = response.headers().firstValue("ETag").orElse(null);
+                state.lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+                long newestBefore = state.newestTimestamp;
+                for (Document doc : docs) {
+                    if (state.versions.add(doc.version()) && state.polled && doc.timestamp() >= newestBefore) {
+                        added.add(doc);
+                    }
+                    state.newestTimestamp = Math.max(state.newestTimestamp, doc.timestamp());
+                }
+                state.polled = true;
+            }
+            added.sort(Comparator.comparingLong(Document::timestamp));
+            for (Document doc : added) {
+                printDocument(query, doc, STREAMED_COORDINATE_WIDTH);
+            }
+            System.out.flush();
+            return new PollResult(added.size(), body.count, false);
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * What watch mode knows about one query: the validators of its last response, the versions
+     * seen so far, and the newest timestamp among them. Guarded by its own lock.
+     */
+    private static class WatchState {
+        String etag;
+        String lastModified;
+        final Set<String> versions = new HashSet<>();
+        long newestTimestamp;
+        boolean polled;
+    }
+
+    private record PollResult(int newVersions, long bytes, boolean notModified) {
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+
+    private void printSearch(String query) {
+        TopDocuments docs = new TopDocuments("n".equals(sortField) ? null : new DocComparator(sortField, descending), top);
+        search(groupArtifactQuery(query), docs);
+        synchronized (System.out) {
+            for (Document doc : docs.sorted()) {
+                printDocument(query, doc, STREAMED_COORDINATE_WIDTH);
+            }
+            System.out.flush();
+        }
+    }
+
+    /**
+     * Prints the newest release of a group:artifact as {@code g:a:v}, read from its
+     * maven-metadata.xml, which is far smaller than a search response. Only when the repository has
+     * no metadata for it is the search API asked instead.
+     */
+    private void printLatest(String groupArtifact) {
+        String[] coords = groupArtifact.split(":");
+        if (coords.length < 2) {
+            throw new RuntimeException("Invalid group:artifact coordinates");
+        }
+        String version = latestFromMetadata(coords[0], coords[1]);
+        if (version == null) {
+            version = latestFromSearch(groupArtifact);
+        }
+        if (version == null) {
+            throw new RuntimeException("No versions found");
+        }
+        synchronized (System.out) {
+            System.out.println(coords[0] + ":" + coords[1] + ":" + version);
+            System.out.flush();
+        }
+    }
+
+    /**
+     * Reads the newest release from maven-metadata.xml, or returns null if the repository doesn't
+     * have the artifact. Metadata is cached for the cache TTL, and after that revalidated with the
+     * ETag and Last-Modified the repository sent, so an unchanged artifact costs a 304 and no body.
+     */
+    private String latestFromMetadata(String groupId, String artifactId) {
+        Path stored = cacheTtl <= 0 ? null : cacheDirectory().resolve("metadata").resolve(groupId).resolve(artifactId + ".xml");
+        Path validators = stored == null ? null : stored.resolveSibling(artifactId + ".headers");
+        try {
+            if (stored != null && Files.exists(stored)) {
+                if (!refresh && Files.getLastModifiedTime(stored).toMillis() > System.currentTimeMillis() - cacheTtl * 60_000L) {
+                    return latestVersion(Files.readString(stored, StandardCharsets.UTF_8));
+                }
+            }
+
+            String url = String.format("%s/%s/%s/maven-metadata.xml", metadataUrl, groupId.replace('.', '/'), artifactId);
+            HttpRequest.Builder request = HttpRequest.newBuilder().uri(URI.create(url));
+            if (stored != null && Files.exists(stored) && Files.exists(validators)) {
+                for (String line : Files.readAllLines(validators, StandardCharsets.UTF_8)) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0 && line.startsWith("ETag:")) {
+                        request.header("If-None-Match", line.substring(colon + 1).strip());
+                    } else if (colon > 0 && line.startsWith("Last-Modified:")) {
+                        request.header("If-Modified-Since", line.substring(colon + 1).strip());
+                    }
+                }
+            }
+            awaitRateLimit();
+            HttpResponse<String> response = client().send(request.build(), HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() == 304 && stored != null && Files.exists(stored)) {
+                Files.setLastModifiedTime(stored, FileTime.fromMillis(System.currentTimeMillis()));
+                return latestVersion(Files.readString(stored, StandardCharsets.UTF_8));
+            }
+            if (response.statusCode() == 404) {
+                return null;
+            }
+            if (response.statusCode() != 200) {
+                throw new RuntimeException("Request failed with status code: " + response.statusCode());
+            }
+            if (stored != null) {
+                StringBuilder headers = new StringBuilder();
+                response.headers().firstValue("ETag").ifPresent(etag -> headers.append("ETag: ").append(etag).append('\n'));
+                response.headers().firstValue("Last-Modified")
+                        .ifPresent(lastModified -> headers.append("Last-Modified: ").append(lastModified).append('\n'));
+                writeAtomically(stored, response.body().getBytes(StandardCharsets.UTF_8));
+                writeAtomically(validators, headers.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            return latestVersion(response.body());
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The release named by the metadata, or else its latest version, or else the last version listed.
+     */
+    private static String latestVersion(String metadata) {
+        for (Pattern pattern : List.of(RELEASE_PATTERN, LATEST_PATTERN)) {
+            Matcher matcher = pattern.matcher(metadata);
+            if (matcher.find()) {
+                return matcher.group(1);
+            }
+        }
+        String version = null;
+        Matcher matcher = VERSION_PATTERN.matcher(metadata);
+        while (matcher.find()) {
+            version = matcher.group(1);
+        }
+        return version;
+    }
+
+    /**
+     * Asks the search API's {@code ga} core, which has one document per artifact with its newest
+     * version, rather than listing every version.
+     */
+    private String latestFromSearch(String groupArtifact) {
+        String url = searchUrl + "?wt=json&core=ga&q=" + groupArtifactQuery(groupArtifact) + "&rows=1";
+        try (InputStream body = fetch(url)) {
+            return mapper.readTree(body).path("response").path("docs").path(0).path("latestVersion").asText(null);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes {@code content} to a temporary file beside {@code file} and moves it into place, so a
+     * concurrent run never reads a partial file. Everything written this way is only an optimization
+     * for the next run, so a failure is not an error, and the method just returns false.
+     */
+    private static boolean writeAtomically(Path file, byte[] content) {
+        Path tempFile = null;
+        try {
+            tempFile = createTempFile(file);
+            Files.write(tempFile, content);
+        } catch (IOException e) {
+            deleteTempFile(tempFile);
+            return false;
+        }
+        return writeAtomically(file, tempFile);
+    }
+
+    /**
+     * Moves {@code tempFile}, already written in full, into place as {@code file}, for content that
+     * is streamed rather than held in memory. The temporary file comes from {@link #createTempFile}.
+     */
+    private static boolean writeAtomically(Path file, Path tempFile) {
+        try {
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            deleteTempFile(tempFile);
+            return false;
+        }
+    }
+
+    private static Path createTempFile(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        return Files.createTempFile(file.getParent(), file.getFileName().toString(), ".part");
+    }
+
+    private static void deleteTempFile(Path tempFile) {
+        if (tempFile != null) {
+            try {
+                Files.deleteIfExists(tempFile);
+            } catch (IOException ignored) {
+                // Left for the user to remove
+            }
+        }
+    }
+
+    private void printHeader(int width) {
+        if ("table".equals(format)) {
+            String tableFormat = "%-" + width + "s%s\n";
+            System.out.printf(tableFormat, "Coordinates", "Last Updated");
+            System.out.printf(tableFormat, "===========", "============");
+        }
+    }
+
+    private void printDocument(String query, Document doc, int width) {
+        synchronized (System.out) {
+            if ("jsonl".equals(format)) {
+                System.out.println(toJsonLine(query, doc));
+            } else {
+                System.out.printf("%-" + width + "s%s\n", formatCoordinates(doc), formatTimestamp(doc.timestamp()));
+            }
+        }
+    }
+
+    private String toJsonLine(String query, Document doc) {
+        Map<String, Object> line = new LinkedHashMap<>();
+        if (query != null) {
+            line.put("query", query);
+        }
+        line.put("g", doc.groudId());
+        line.put("a", doc.artifactId());
+        line.put("v", doc.version());
+        line.put("p", doc.packaging());
+        line.put("timestamp", doc.timestamp());
+        try {
+            return mapper.writeValueAsString(line);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Documents from the local index have no publish time, stored as 0, and show as {@code -}.
+     */
+    private String formatTimestamp(long timestamp) {
+        return timestamp == 0 ? "-" : dateFormat.format(Instant.ofEpochMilli(timestamp));
+    }
+
+    private static String formatCoordinates(Document doc) {
+        return String.format("%s:%s:%s", doc.groudId(), doc.artifactId(), doc.version());
+    }
+
+    /**
+     * Fetches up to {@code rows} documents, or all of them with {@code --all}, a page at a time. The
+     * first page tells how many documents match, and the remaining pages are then requested on
+     * virtual threads over the one client, at most {@code concurrency} at a time, as batch queries
+     * are. The first page to fail cancels the rest.
+     */
+    private void fetchPages(String url, Consumer<Document> sink) {
+        int numFound = sendRequest(url + "&rows=" + PAGE_SIZE, sink);
+        int total = all ? numFound : Math.min(rows, numFound);
+        if (total <= PAGE_SIZE) {
+            return;
+        }
+
+        Semaphore inFlight = new Semaphore(Math.max(1, concurrency));
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        try {
+            List<Future<Integer>> pages = new ArrayList<>();
+            for (int start = PAGE_SIZE; start < total; start += PAGE_SIZE) {
+                String pageUrl = url + "&rows=" + Math.min(PAGE_SIZE, total - start) + "&start=" + start;
+                pages.add(executor.submit(() -> {
+                    inFlight.acquire();
+                    try {
+                        return sendRequest(pageUrl, sink);
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            }
+            for (Future<Integer> page : pages) {
+                page.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException runtime ? runtime : new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void outputResults(List<Document> docs) {
+        if ("jsonl".equals(format)) {
+            docs.forEach(doc -> System.out.println(toJsonLine(null, doc)));
+            return;
+        }
 
-        Function<Document, String> formatDoc = d -> String.format("%s:%s:%s", d.groudId, d.artifactId, d.version);
+        Function<Document, String> formatDoc = mvnsrch::formatCoordinates;
         var width = docs.stream().map(formatDoc)
                 .map(String::length)
                 .max(Integer::compareTo)
                 .orElseGet(() -> 80) + 2;
         var format = "%-" + width + "s%s\n";
 
-        var df = new SimpleDateFormat("yyyy-MM-dd hh:mm aa (zzz)");
         System.out.printf(format, "Coordinates", "Last Updated");
         System.out.printf(format, "===========", "============");
-        docs.stream()
-                .sorted(new DocComparator(sortField, descending))
-                .forEach(doc ->
-                        System.out.printf(format, formatDoc.apply(doc), df.format(new Date(doc.timestamp))));
+        docs.forEach(doc ->
+                System.out.printf(format, formatDoc.apply(doc), formatTimestamp(doc.timestamp)));
+    }
+
+    /**
+     * Passes the documents of one response to {@code sink} as they are parsed, from the cache or
+     * from the server, and returns the total number of documents matching the query. A response
+     * from the server is copied into the cache while it is read, and kept only if it parsed.
+     */
+    private int sendRequest(String url, Consumer<Document> sink) {
+        try {
+            InputStream cached = refresh ? null : cache.get(url);
+            if (cached != null) {
+                try (cached) {
+                    return parse(cached, sink);
+                }
+            }
+            try (ResponseCache.CachingInputStream body = cache.put(url, fetch(url))) {
+                int numFound = parse(body, sink);
+                body.commit();
+                return numFound;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads a search response with the streaming parser, binding only one document at a time, and
+     * returns its {@code numFound}.
+     */
+    private int parse(InputStream body, Consumer<Document> sink) throws IOException {
+        int numFound = 0;
+        try (JsonParser parser = mapper.getFactory().createParser(body)) {
+            // The caller closes the body, once the cache has the rest of it
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Unexpected search response");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                boolean response = "response".equals(parser.currentName());
+                if (parser.nextToken() != JsonToken.START_OBJECT || !response) {
+                    parser.skipChildren();
+                    continue;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    JsonToken value = parser.nextToken();
+                    if ("numFound".equals(field) && value == JsonToken.VALUE_NUMBER_INT) {
+                        numFound = parser.getIntValue();
+                    } else if ("docs".equals(field) && value == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            sink.accept(mapper.readValue(parser, Document.class));
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+        }
+        return numFound;
+    }
+
+    private InputStream fetch(String url) {
+        HttpRequest request = HttpRequest.newBuilder().uri(URI.create(url)).build();
+        try {
+            awaitRateLimit();
+            HttpResponse<InputStream> response = client().send(request, HttpResponse.BodyHandlers.ofInputStream());
+            if (response.statusCode() != 200) {
+                response.body().close();
+                throw new RuntimeException("Request failed with status code: " + response.statusCode());
+            }
+            return response.body();
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Spaces requests to the server {@code 1 / rate} seconds apart; responses from the cache don't
+     * count.
+     */
+    private void awaitRateLimit() throws InterruptedException {
+        if (rate <= 0) {
+            return;
+        }
+        long slot;
+        synchronized (this) {
+            slot = Math.max(System.nanoTime(), nextRequestNanos);
+            nextRequestNanos = slot + (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        }
+        long wait = slot - System.nanoTime();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    private synchronized LocalIndex localIndex() {
+        if (!localIndexOpened) {
+            localIndex = LocalIndex.open(cacheDirectory().resolve(LocalIndex.FILE_NAME));
+            localIndexOpened = true;
+        }
+        return localIndex;
+    }
+
+    /**
+     * The client is only created once a response isn't found in the cache.
+     */
+    private synchronized HttpClient client() {
+        if (client == null) {
+            client = HttpClient.newHttpClient();
+        }
+        return client;
+    }
+
+    /**
+     * The directory holding cached responses: {@code $XDG_CACHE_HOME/mvnsrch} when set, otherwise
+     * {@code ~/.m2/mvnsrch}.
+     */
+    private static Path cacheDirectory() {
+        String xdgCacheHome = System.getenv("XDG_CACHE_HOME");
+        Path base = xdgCacheHome != null && !xdgCacheHome.isBlank()
+                ? Path.of(xdgCacheHome)
+                : Path.of(System.getProperty("user.home"), ".m2");
+        return base.resolve("mvnsrch");
     }
 
-    private SearchResult sendRequest(String url) {
-        ObjectMapper mapper = new ObjectMapper();
-        try (HttpClient client = HttpClient.newHttpClient()) {
-            HttpRequest request = HttpRequest.newBuilder().uri(URI.create(url)).build();
+    /**
+     * Search responses on disk, one file per query URL named by its SHA-256. A response is reused
+     * until it is older than the TTL, and once the files add up to more than the size limit, the
+     * oldest ones are removed. Failures to read or write the cache are ignored; the
+     * query is simply sent to the server.
+     */
+    private static class ResponseCache {
+        private final Path directory;
+        private final Duration ttl;
+        private final long maxBytes;
+
+        ResponseCache(Path directory, Duration ttl, long maxBytes) {
+            this.directory = directory;
+            this.ttl = ttl;
+            this.maxBytes = maxBytes;
+        }
+
+        InputStream get(String url) {
+            if (ttl.isZero()) {
+                return null;
+            }
+            Path file = file(url);
+            try {
+                if (fetched(file) < System.currentTimeMillis() - ttl.toMillis()) {
+                    return null;
+                }
+                return Files.newInputStream(file);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Wraps a response body so that what is read from it is also written to a temporary file,
+         * which {@link CachingInputStream#commit()} moves into place.
+         */
+        CachingInputStream put(String url, InputStream body) {
+            Path file = file(url);
+            Path tempFile = null;
+            OutputStream copy = null;
+            if (!ttl.isZero()) {
+                try {
+                    tempFile = createTempFile(file);
+                    copy = Files.newOutputStream(tempFile);
+                } catch (IOException e) {
+                    // The cache is only an optimization for the next run
+                    deleteTempFile(tempFile);
+                    tempFile = null;
+                }
+            }
+            return new CachingInputStream(body, file, tempFile, copy);
+        }
+
+        private void evict() throws IOException {
+            List<Path> files;
+            try (Stream<Path> entries = Files.list(directory)) {
+                files = entries.filter(file -> file.getFileName().toString().endsWith(".json"))
+                        .sorted(Comparator.comparingLong(ResponseCache::fetched).reversed())
+                        .toList();
+            }
+            long total = 0;
+            for (Path file : files) {
+                total += Files.size(file);
+                if (total > maxBytes) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+
+        private Path file(String url) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+                return directory.resolve(HexFormat.of().formatHex(digest) + ".json");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static long fetched(Path file) {
             try {
-                HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-                if (response.statusCode() != 200) {
-                    throw new RuntimeException("Request failed with status code: " + response.statusCode());
+                return Files.getLastModifiedTime(file).toMillis();
+            } catch (IOException e) {
+                return 0;
+            }
+        }
+
+        private class CachingInputStream extends FilterInputStream {
+            private final Path file;
+            private Path tempFile;
+            private OutputStream copy;
+
+            CachingInputStream(InputStream body, Path file, Path tempFile, OutputStream copy) {
+                super(body);
+                this.file = file;
+                this.tempFile = tempFile;
+                this.copy = copy;
+            }
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    copy(new byte[]{(byte) b}, 0, 1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int count = super.read(buffer, offset, length);
+                if (count > 0) {
+                    copy(buffer, offset, count);
+                }
+                return count;
+            }
+
+            /**
+             * Reads whatever the parser left unread into the copy and makes it the cached response.
+             */
+            void commit() throws IOException {
+                if (copy == null) {
+                    return;
+                }
+                byte[] buffer = new byte[8192];
+                while (read(buffer, 0, buffer.length) >= 0) {
+                    // Copied by read
+                }
+                try {
+                    copy.close();
+                } catch (IOException e) {
+                    // Deleted by close
+                    return;
+                } finally {
+                    copy = null;
+                }
+                boolean written = writeAtomically(file, tempFile);
+                tempFile = null;
+                if (written) {
+                    try {
+                        evict();
+                    } catch (IOException e) {
+                        // Evicting again after the next response will do
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if (copy != null) {
+                        try {
+                            copy.close();
+                        } catch (IOException ignored) {
+                            // The copy is deleted either way
+                        }
+                        copy = null;
+                    }
+                    deleteTempFile(tempFile);
+                    tempFile = null;
+                }
+            }
+
+            private void copy(byte[] buffer, int offset, int length) {
+                if (copy == null) {
+                    return;
+                }
+                try {
+                    copy.write(buffer, offset, length);
+                } catch (IOException e) {
+                    try {
+                        copy.close();
+                    } catch (IOException ignored) {
+                        // Already giving up on caching this response
+                    }
+                    copy = null;
                 }
-                return mapper.readValue(response.body(), SearchResult.class);
-            } catch (IOException | InterruptedException e) {
-                throw new RuntimeException(e);
             }
         }
     }
 
-    @JsonIgnoreProperties(ignoreUnknown = true)
-    private record SearchResult(Response response) {
+    /**
+     * An inverted index of the artifacts in a local repository, memory-mapped so a query only touches
+     * the pages it needs. Terms are the fields of the search API, {@code g:}, {@code a:}, {@code c:}
+     * (simple class name) and {@code fc:} (fully-qualified class name), each with a posting list of
+     * the documents having it. The file, big-endian, holds:
+     * <ul>
+     *     <li>the magic number {@code MSIX}, the format version, and the document and term counts (ints)</li>
+     *     <li>the file offset of every document and then of every term (ints), the terms sorted</li>
+     *     <li>the documents: groupId, artifactId, version and packaging as length-prefixed UTF-8, and
+     *     the timestamp (long), always 0 since a local repository doesn't record when an artifact was
+     *     published</li>
+     *     <li>the terms: the term as length-prefixed UTF-8, the number of documents (int) and their
+     *     indexes in ascending order (ints)</li>
+     * </ul>
+     */
+    private static class LocalIndex {
+        static final String FILE_NAME = "search-index.bin";
+        private static final int MAGIC = 0x4D534958;
+        private static final int VERSION = 2;
+        private static final int HEADER_SIZE = 16;
+
+        private final MappedByteBuffer buffer;
+        private final int documentCount;
+        private final int termCount;
+
+        private LocalIndex(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+            this.documentCount = buffer.getInt(8);
+            this.termCount = buffer.getInt(12);
+        }
+
+        /**
+         * Maps the index, or returns null if there is none or it isn't one this version can read.
+         */
+        static LocalIndex open(Path file) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                    return null;
+                }
+                return new LocalIndex(buffer);
+            } catch (IOException e) {
+                return null;
+            }
+        }
 
+        /**
+         * Passes up to {@code limit} documents having all the terms to {@code sink}, and returns
+         * whether there were any.
+         */
+        boolean search(String[] terms, int limit, Consumer<Document> sink) {
+            int[] matches = null;
+            for (String term : terms) {
+                int[] postings = postings(term);
+                matches = matches == null ? postings : intersect(matches, postings);
+                if (matches.length == 0) {
+                    return false;
+                }
+            }
+            for (int i = 0; i < matches.length && i < limit; i++) {
+                sink.accept(document(matches[i]));
+            }
+            return true;
+        }
+
+        private int[] postings(String term) {
+            int termTable = HEADER_SIZE + documentCount * 4;
+            int low = 0;
+            int high = termCount - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int offset = buffer.getInt(termTable + middle * 4);
+                int comparison = readString(offset).compareTo(term);
+                if (comparison < 0) {
+                    low = middle + 1;
+                } else if (comparison > 0) {
+                    high = middle - 1;
+                } else {
+                    offset += 2 + Short.toUnsignedInt(buffer.getShort(offset));
+                    int[] postings = new int[buffer.getInt(offset)];
+                    for (int i = 0; i < postings.length; i++) {
+                        postings[i] = buffer.getInt(offset + 4 + i * 4);
+                    }
+                    return postings;
+                }
+            }
+            return new int[0];
+        }
+
+        private static int[] intersect(int[] one, int[] two) {
+            int[] both = new int[Math.min(one.length, two.length)];
+            int count = 0;
+            for (int i = 0, j = 0; i < one.length && j < two.length; ) {
+                if (one[i] < two[j]) {
+                    i++;
+                } else if (one[i] > two[j]) {
+                    j++;
+                } else {
+                    both[count++] = one[i];
+                    i++;
+                    j++;
+                }
+            }
+            return Arrays.copyOf(both, count);
+        }
+
+        private Document document(int index) {
+            int offset = buffer.getInt(HEADER_SIZE + index * 4);
+            String[] fields = new String[4];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = readString(offset);
+                offset += 2 + Short.toUnsignedInt(buffer.getShort(offset));
+            }
+            return new Document(fields[0] + ":" + fields[1] + ":" + fields[2], fields[0], fields[1], fields[2], fields[3],
+                    buffer.getLong(offset), List.of());
+        }
+
+        // Absolute reads only, so the buffer can be shared between threads
+        private String readString(int offset) {
+            byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort(offset))];
+            buffer.get(offset + 2, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Indexes every {@code artifactId-version.pom} in the repository, and the classes of the JAR
+         * beside it, and writes the index to {@code file}. JARs are read in parallel.
+         */
+        static void build(Path repository, Path file) throws IOException {
+            long start = System.nanoTime();
+            List<Path> poms;
+            try (Stream<Path> files = Files.walk(repository)) {
+                poms = files.filter(path -> path.getFileName().toString().endsWith(".pom"))
+                        .filter(path -> path.getNameCount() - repository.getNameCount() >= 4)
+                        .filter(path -> path.getFileName().toString().equals(
+                                path.getParent().getParent().getFileName() + "-" + path.getParent().getFileName() + ".pom"))
+                        .sorted()
+                        .toList();
+            }
+            List<Entry> entries = poms.parallelStream().map(pom -> Entry.read(repository, pom)).toList();
+
+            Map<String, List<Integer>> postings = new TreeMap<>();
+            ByteArrayOutputStream documentBytes = new ByteArrayOutputStream();
+            DataOutputStream documents = new DataOutputStream(documentBytes);
+            int[] documentOffsets = new int[entries.size()];
+            int classes = 0;
+            for (int index = 0; index < entries.size(); index++) {
+                Entry entry = entries.get(index);
+                documentOffsets[index] = documents.size();
+                writeString(documents, entry.groupId());
+                writeString(documents, entry.artifactId());
+                writeString(documents, entry.version());
+                writeString(documents, entry.packaging());
+                documents.writeLong(entry.timestamp());
+                postings.computeIfAbsent("g:" + entry.groupId(), term -> new ArrayList<>()).add(index);
+                postings.computeIfAbsent("a:" + entry.artifactId(), term -> new ArrayList<>()).add(index);
+                for (String className : entry.classNames()) {
+                    postings.computeIfAbsent("fc:" + className, term -> new ArrayList<>()).add(index);
+                    postings.computeIfAbsent("c:" + className.substring(className.lastIndexOf('.') + 1),
+                            term -> new ArrayList<>()).add(index);
+                }
+                classes += entry.classNames().size();
+            }
+
+            ByteArrayOutputStream termBytes = new ByteArrayOutputStream();
+            DataOutputStream terms = new DataOutputStream(termBytes);
+            int[] termOffsets = new int[postings.size()];
+            int termIndex = 0;
+            for (Map.Entry<String, List<Integer>> term : postings.entrySet()) {
+                termOffsets[termIndex++] = terms.size();
+                writeString(terms, term.getKey());
+                List<Integer> documentIndexes = term.getValue();
+                terms.writeInt(documentIndexes.size());
+                for (int documentIndex : documentIndexes) {
+                    terms.writeInt(documentIndex);
+                }
+            }
+
+            ByteArrayOutputStream indexBytes = new ByteArrayOutputStream(HEADER_SIZE + documents.size() + terms.size()
+                    + (documentOffsets.length + termOffsets.length) * 4);
+            try (DataOutputStream out = new DataOutputStream(indexBytes)) {
+                int documentsStart = HEADER_SIZE + (documentOffsets.length + termOffsets.length) * 4;
+                int termsStart = documentsStart + documents.size();
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(documentOffsets.length);
+                out.writeInt(termOffsets.length);
+                for (int offset : documentOffsets) {
+                    out.writeInt(documentsStart + offset);
+                }
+                for (int offset : termOffsets) {
+                    out.writeInt(termsStart + offset);
+                }
+                documentBytes.writeTo(out);
+                termBytes.writeTo(out);
+            }
+            if (!writeAtomically(file, indexBytes.toByteArray())) {
+                throw new IOException("Could not write the index to " + file);
+            }
+            System.err.printf("Indexed %d artifacts and %d classes in %s into %s (%d ms)%n", entries.size(), classes,
+                    repository, file, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+
+        private record Entry(String groupId, String artifactId, String version, String packaging, long timestamp,
+                             Set<String> classNames) {
+
+            static Entry read(Path repository, Path pom) {
+                Path versionDir = pom.getParent();
+                Path artifactDir = versionDir.getParent();
+                String groupId = repository.relativize(artifactDir.getParent()).toString()
+                        .replace(artifactDir.getFileSystem().getSeparator(), ".");
+                String artifactId = artifactDir.getFileName().toString();
+                String version = versionDir.getFileName().toString();
+                Path jar = versionDir.resolve(artifactId + "-" + version + ".jar");
+                boolean hasJar = Files.exists(jar);
+                return new Entry(groupId, artifactId, version, hasJar ? "jar" : "pom", 0,
+                        hasJar ? classNames(jar) : Set.of());
+            }
+
+            /**
+             * The top-level classes in the JAR, as fully-qualified names. A JAR that can't be read
+             * is indexed without classes.
+             */
+            private static Set<String> classNames(Path jar) {
+                Set<String> classNames = new TreeSet<>();
+                try (ZipFile zip = new ZipFile(jar.toFile())) {
+                    zip.stream()
+                            .map(ZipEntry::getName)
+                            .filter(name -> name.endsWith(".class") && name.indexOf('$') < 0)
+                            .filter(name -> !name.endsWith("module-info.class") && !name.endsWith("package-info.class"))
+                            .filter(name -> !name.startsWith("META-INF/"))
+                            .forEach(name -> classNames.add(name.substring(0, name.length() - ".class".length()).replace('/', '.')));
+                } catch (IOException e) {
+                    return Set.of();
+                }
+                return classNames;
+            }
+        }
     }
 
-    @JsonIgnoreProperties(ignoreUnknown = true)
-    private record Response(int numFound, int start,
-                            List<Document> docs) {
+    /**
+     * Keeps the documents of a search in {@code order}, or in the order received when it is null.
+     * With a limit, only that many are kept: the best ones, in a heap whose head is the worst of
+     * them, or else the first ones received. Documents may arrive from several threads.
+     */
+    private static class TopDocuments implements Consumer<Document> {
+        private final Comparator<Document> order;
+        private final int limit;
+        private final PriorityQueue<Document> heap;
+        private final List<Document> received = new ArrayList<>();
+
+        TopDocuments(Comparator<Document> order, int limit) {
+            this.order = order;
+            this.limit = limit;
+            this.heap = order != null && limit > 0 ? new PriorityQueue<>(limit + 1, order.reversed()) : null;
+        }
+
+        @Override
+        public synchronized void accept(Document doc) {
+            if (heap != null) {
+                heap.add(doc);
+                if (heap.size() > limit) {
+                    heap.poll();
+                }
+            } else if (limit <= 0 || received.size() < limit) {
+                received.add(doc);
+            }
+        }
+
+        synchronized List<Document> sorted() {
+            List<Document> docs = new ArrayList<>(heap != null ? heap : received);
+            if (order != null) {
+                docs.sort(order);
+            }
+            return docs;
+        }
     }
 
     @JsonIgnoreProperties(ignoreUnknown = true)